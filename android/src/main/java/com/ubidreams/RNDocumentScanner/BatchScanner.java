@@ -0,0 +1,186 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
+
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects and crops many pages at once, one page per core.
+ * Pages only start when their full resolution image fits in the memory budget,
+ * so that large batches don't run out of memory.
+ */
+public class BatchScanner {
+
+    public interface Listener {
+        void onPageDone(int index, WritableMap page, int completed, int total);
+    }
+
+    // memory budget is counted in KB to fit in semaphore permits
+    private static final int KB = 1024;
+
+    private final String tag = "RNDocumentScanner";
+    private final ThreadPoolExecutor pool;
+    private final DocumentCropper cropper;
+    private final Semaphore memory;
+    private final int memoryPermits;
+
+    public BatchScanner(DocumentCropper cropper) {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        this.pool = new ThreadPoolExecutor(
+            cores,
+            cores,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            ScannerExecutor.createThreadFactory("RNDocumentScanner-batch-")
+        );
+        this.pool.allowCoreThreadTimeOut(true);
+        this.cropper = cropper;
+
+        // decoded pages (bitmap and Mat copy) can take up to a quarter of the heap
+        this.memoryPermits = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / KB);
+        this.memory = new Semaphore(this.memoryPermits);
+    }
+
+    /**
+     * Scan all pages, the listener is called as each page is done (in any order).
+     * Returns page results in the order of paths, a failed page only has an error.
+     */
+    public WritableArray run(List<String> paths, final int width, final int height, final int detectionSize, final CropOptions options, final Listener listener) throws InterruptedException {
+        final int total = paths.size();
+        CompletionService<WritableMap> completion = new ExecutorCompletionService<>(this.pool);
+        List<Future<WritableMap>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < total; i++) {
+                final int index = i;
+                final String path = paths.get(i);
+
+                futures.add(completion.submit(new Callable<WritableMap>() {
+                    @Override
+                    public WritableMap call() {
+                        return scanPage(index, path, width, height, detectionSize, options);
+                    }
+                }));
+            }
+
+            WritableMap[] pages = new WritableMap[total];
+
+            for (int completed = 1; completed <= total; completed++) {
+                WritableMap page;
+
+                try {
+                    page = completion.take().get();
+                } catch (ExecutionException e) {
+                    // scanPage catches everything, should not happen
+                    throw new IllegalStateException(e.getCause());
+                }
+
+                int index = page.getInt("index");
+                pages[index] = page;
+
+                // event gets its own copy, maps can only be consumed once
+                WritableMap event = Arguments.createMap();
+                event.merge(page);
+                listener.onPageDone(index, event, completed, total);
+            }
+
+            WritableArray result = new WritableNativeArray();
+
+            for (WritableMap page : pages) {
+                result.pushMap(page);
+            }
+
+            return result;
+        } finally {
+            // cancelled or failed, stop remaining pages
+            for (Future<WritableMap> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    public void shutdown() {
+        this.pool.shutdownNow();
+    }
+
+    private WritableMap scanPage(int index, String path, int width, int height, int detectionSize, CropOptions options) {
+        WritableMap page = new WritableNativeMap();
+        page.putInt("index", index);
+        page.putString("path", path);
+
+        BitmapOpenCV bitmap = new BitmapOpenCV(path, width, height);
+        int permits = (int) Math.min(this.memoryPermits, Math.max(1, bitmap.getImageBytes() * 2 / KB));
+        boolean acquired = false;
+
+        try {
+            this.memory.acquire(permits);
+            acquired = true;
+
+            DetectionResult detection = bitmap.findDocument(detectionSize, null);
+            ScannerExecutor.throwIfCancelled();
+
+            // no document found, keep the whole page
+            page.putBoolean("detected", detection != null);
+            page.putDouble("confidence", detection != null ? detection.confidence : 0);
+            page.putString("strategy", detection != null ? detection.strategy : null);
+
+            Point[] points = detection != null ? detection.points : bitmap.getImageCorners();
+
+            if (points == null) {
+                throw new UnreadableImageException(path);
+            }
+
+            WritableArray pointsArray = new WritableNativeArray();
+
+            for (int i = 0; i < 4; i++) {
+                WritableMap point = new WritableNativeMap();
+                point.putDouble("x", points[i].x);
+                point.putDouble("y", points[i].y);
+
+                pointsArray.pushMap(point);
+            }
+
+            page.putArray("points", pointsArray);
+            page.merge(this.cropper.crop(bitmap, points, options, null));
+        } catch (InterruptedException | CancellationException e) {
+            page.putString("error", "Page cancelled");
+        } catch (Exception e) {
+            Log.d(tag, "Error scanning page " + index);
+            e.printStackTrace();
+            page.putString("error", e.getMessage());
+        } catch (OutOfMemoryError e) {
+            Log.d(tag, "Out of memory scanning page " + index);
+            page.putString("error", "Out of memory");
+        } finally {
+            bitmap.releaseRegion();
+
+            if (acquired) {
+                this.memory.release(permits);
+            }
+        }
+
+        return page;
+    }
+
+}
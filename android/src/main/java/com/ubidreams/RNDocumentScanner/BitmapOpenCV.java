@@ -1,296 +1,657 @@
 package com.ubidreams.RNDocumentScanner;
 
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.PointF;
-import android.media.ThumbnailUtils;
-import android.net.Uri;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
 import android.os.Environment;
-import android.provider.MediaStore;
-import android.util.Log;
 
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 
-import androidx.core.content.FileProvider;
-
 import static org.opencv.android.Utils.bitmapToMat;
 import static org.opencv.android.Utils.matToBitmap;
 
 public class BitmapOpenCV {
 
+    private static final int REFINE_MIN_HALF_SIZE = 5;
+    private static final int REFINE_MAX_HALF_SIZE = 32;
+    // regions decoding to more than this are warped in bands decoded one at a time, instead of from the whole region
+    private static final long BANDED_WARP_MIN_BYTES = 32L * 1024 * 1024;
+    // most source bytes decoded at once by a banded warp
+    private static final long BANDED_WARP_BAND_BYTES = 8L * 1024 * 1024;
+
     private boolean debug = false; // if you want to debug don't forget to enable "Storage" in app permissions
-    private Bitmap originalBitmap = null;
+    private String imagePath;
+    private ImageOrientation orientation;
+    // frame region, in upright image pixels and in stored pixels (as decoded)
+    private Rect imageRect = null;
+    private Rect storedRect = null;
     private Size frameSize;
+    private Size fullSize;
     private Size imageSize;
     private double frameScale;
 
-    public static int KSIZE_BLUR = 3;
-    public static int KSIZE_CLOSE = 10;
-    public static final int CANNY_THRESH_L = 85;
-    public static final int CANNY_THRESH_U = 185;
-    public static final int TRUNC_THRESH = 150;
-    public static final int CUTOFF_THRESH = 155;
+    // last decoded region, kept so that a session can be cropped again without decoding, released under memory pressure
+    private Region region = null;
+
+    /**
+     * Decoded region and the number of jobs copying it, it is recycled once released and no longer copied
+     */
+    private static class Region {
+        final Bitmap bitmap;
+        final int sampleSize;
+        int users = 0;
+        boolean released = false;
+
+        Region(Bitmap bitmap, int sampleSize) {
+            this.bitmap = bitmap;
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    public BitmapOpenCV(String imagePath, int width, int height) {
+        this.imagePath = imagePath;
+        this.frameSize = new Size(width, height);
+
+        // only read image bounds, pixels are decoded later at the resolution each step needs
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, options);
+
+        // keep the centered region of the upright image matching the desired frame ratio
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            this.orientation = new ImageOrientation(readOrientation(imagePath), options.outWidth, options.outHeight);
+            int imageWidth = this.orientation.getWidth();
+            int imageHeight = this.orientation.getHeight();
+            this.fullSize = new Size(imageWidth, imageHeight);
+            this.setFrame(width, height);
+        }
+    }
 
-    private static Mat morph_kernel = new Mat(new Size(KSIZE_CLOSE, KSIZE_CLOSE), CvType.CV_8UC1, new Scalar(255));
+    /**
+     * Same image in another frame size, nothing is read from the file
+     */
+    private BitmapOpenCV(BitmapOpenCV source, int width, int height) {
+        this.imagePath = source.imagePath;
+        this.frameSize = new Size(width, height);
+        this.orientation = source.orientation;
+        this.fullSize = source.fullSize;
+
+        if (this.fullSize != null) {
+            this.setFrame(width, height);
+        }
+    }
 
-    public BitmapOpenCV(Context context, String imagePath, int width, int height) {
-        // convert string path to Uri
-        Uri uri = FileProvider.getUriForFile(
-            context,
-            context.getApplicationContext().getPackageName() + ".provider",
-            new File(imagePath)
-        );
+    /**
+     * Keep the centered region of the upright image matching the frame ratio
+     */
+    private void setFrame(int width, int height) {
+        int imageWidth = (int) this.fullSize.width;
+        int imageHeight = (int) this.fullSize.height;
 
-        // get image from uri
-        Bitmap bitmap = null;
+        double desiredRatio = (double) width / height;
+        int regionWidth = imageWidth;
+        int regionHeight = imageHeight;
 
-        try {
-            bitmap = MediaStore.Images.Media.getBitmap(context.getContentResolver(), uri);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if ((double) regionWidth / regionHeight > desiredRatio) {
+            regionWidth = (int) Math.round(regionHeight * desiredRatio);
+        } else {
+            regionHeight = (int) Math.round(regionWidth / desiredRatio);
         }
 
-        // transform original image with desired frame ratio
-        if (bitmap != null) {
-            double desiredRatio = (double) width / height;
-            int desiredWidth = (int) Math.round(bitmap.getHeight() * desiredRatio);
-            int desiredHeight = bitmap.getHeight();
+        int regionX = (imageWidth - regionWidth) / 2;
+        int regionY = (imageHeight - regionHeight) / 2;
+
+        this.imageRect = new Rect(regionX, regionY, regionX + regionWidth, regionY + regionHeight);
+        int[] stored = this.orientation.toStored(regionX, regionY, regionX + regionWidth, regionY + regionHeight);
+        this.storedRect = new Rect(stored[0], stored[1], stored[2], stored[3]);
+        this.imageSize = new Size(regionWidth, regionHeight);
+        this.frameScale = Math.min(this.frameSize.width / this.imageSize.width, this.frameSize.height / this.imageSize.height);
+    }
 
-            this.originalBitmap = ThumbnailUtils.extractThumbnail(bitmap, desiredWidth, desiredHeight);
-            if (this.debug) this.saveBitmapAsPicture(this.originalBitmap, "image-original.png");
+    /**
+     * Document found in frame coordinates, a centered square with no confidence if there is none.
+     * A result cached for the same image in another layout is reused when there is one.
+     */
+    public DetectionResult detectEdges(int detectionSize, DetectionCache cache, ScanMetrics metrics) {
+        String key = cache != null && this.imageRect != null ? DetectionCache.key(this.imagePath, detectionSize) : null;
+        DetectionResult cached = key != null ? cache.get(key) : null;
+        DetectionResult result;
+
+        if (cached != null) {
+            result = cached.points != null ? new DetectionResult(this.imageToFrame(cached.points), cached.confidence, cached.strategy) : null;
+            if (metrics != null) metrics.lap("cache");
+        } else {
+            result = this.findDocument(detectionSize, metrics);
 
-            this.frameSize = new Size(width, height);
-            this.imageSize = new Size(this.originalBitmap.getWidth(), this.originalBitmap.getHeight());
-            this.frameScale = Math.min(this.frameSize.width / this.imageSize.width, this.frameSize.height / this.imageSize.height);
+            if (key != null) {
+                cache.put(key, result != null ? new DetectionResult(this.frameToImage(result.points), result.confidence, result.strategy) : new DetectionResult(null, 0, null));
+            }
         }
+
+        if (result != null) {
+            return result;
+        }
+
+        double defaultWidth = this.frameSize.width * 0.5;
+        double defaultHeight = defaultWidth;
+        double defaultX = (this.frameSize.width - defaultWidth) / 2;
+        double defaultY = (this.frameSize.height - defaultHeight) / 2;
+
+        Point[] defaultPoints = new Point[] {
+            new Point(defaultX, defaultY),
+            new Point(defaultX + defaultWidth, defaultY),
+            new Point(defaultX + defaultWidth, defaultY + defaultHeight),
+            new Point(defaultX, defaultY + defaultHeight)
+        };
+
+        return new DetectionResult(defaultPoints, 0, null);
     }
 
-    public List<PointF> detectEdges() {
-        float defaultWidth = (float) (this.frameSize.width * 0.5);
-        float defaultHeight = defaultWidth;
-        float defaultX = (float) (this.frameSize.width - defaultWidth) / 2;
-        float defaultY = (float) (this.frameSize.height - defaultHeight) / 2;
+    /**
+     * Document found by the detection cascade, corners in frame coordinates, null if no document is found.
+     * Detection runs at the frame size, or when a detection size is given on a downscaled image of that long side,
+     * corners are then refined in small windows of the full resolution image.
+     */
+    public DetectionResult findDocument(int detectionSize, ScanMetrics metrics) {
+        DocumentDetector.StepListener listener = this.createStepListener(metrics);
+        Size detectionImageSize = this.decodeDetectionImage(detectionSize, listener);
+
+        if (detectionImageSize == null) {
+            return null;
+        }
 
-        List<PointF> defaultResult = new ArrayList<>();
-        defaultResult.add(new PointF(defaultX, defaultY));
-        defaultResult.add(new PointF(defaultX + defaultWidth, defaultY));
-        defaultResult.add(new PointF(defaultX + defaultWidth, defaultY + defaultHeight));
-        defaultResult.add(new PointF(defaultX, defaultY + defaultHeight));
+        DetectionResult result = DetectionCascade.detect(DetectorWorkspace.get().gray, listener);
 
-        if (this.originalBitmap != null) {
-            Mat image = new Mat();
-            bitmapToMat(this.originalBitmap, image);
+        if (result == null || detectionSize <= 0) {
+            return result;
+        }
 
-            double contentWidth = this.imageSize.width * this.frameScale;
-            double contentHeight = this.imageSize.height * this.frameScale;
-            Imgproc.resize(image, image, new Size(contentWidth, contentHeight));
-            if (this.debug) this.saveMatAsPicture(image, "image-resized.png");
+        Point[] points = this.detectionToFrame(result.points, detectionImageSize.width, listener);
 
-            List<MatOfPoint> squares = this.findSquares(image);
-            Point[] points = this.findLargestSquares(squares);
+        return new DetectionResult(points, result.confidence, result.strategy);
+    }
 
-            if (points != null) {
-                List<PointF> result = new ArrayList<>();
+    /**
+     * All documents found in a single detection pass, most confident first, corners in frame coordinates.
+     * Empty if no document is found, detection and refinement work as in findDocument.
+     */
+    public List<DetectionResult> findDocuments(int detectionSize, int maxDocuments, ScanMetrics metrics) {
+        DocumentDetector.StepListener listener = this.createStepListener(metrics);
+        Size detectionImageSize = this.decodeDetectionImage(detectionSize, listener);
 
-                result.add(new PointF(Double.valueOf(points[0].x).floatValue(), Double.valueOf(points[0].y).floatValue()));
-                result.add(new PointF(Double.valueOf(points[1].x).floatValue(), Double.valueOf(points[1].y).floatValue()));
-                result.add(new PointF(Double.valueOf(points[2].x).floatValue(), Double.valueOf(points[2].y).floatValue()));
-                result.add(new PointF(Double.valueOf(points[3].x).floatValue(), Double.valueOf(points[3].y).floatValue()));
+        if (detectionImageSize == null) {
+            return new ArrayList<>();
+        }
 
-                image.release();
+        List<DetectionResult> results = DetectionCascade.detectAll(DetectorWorkspace.get().gray, maxDocuments, listener);
 
-                return result;
-            } else {
-                return defaultResult;
-            }
+        if (results.isEmpty() || detectionSize <= 0) {
+            return results;
+        }
+
+        // corners of all documents are refined together, with a single region decoder
+        Point[] points = new Point[results.size() * 4];
+
+        for (int i = 0; i < results.size(); i++) {
+            System.arraycopy(results.get(i).points, 0, points, i * 4, 4);
+        }
+
+        points = this.detectionToFrame(points, detectionImageSize.width, listener);
+        List<DetectionResult> documents = new ArrayList<>();
+
+        for (int i = 0; i < results.size(); i++) {
+            DetectionResult result = results.get(i);
+            documents.add(new DetectionResult(Arrays.copyOfRange(points, i * 4, i * 4 + 4), result.confidence, result.strategy));
+        }
+
+        return documents;
+    }
+
+    /**
+     * Decode the upright grayscale detection image in the workspace gray Mat
+     * @return its size, null if the image can't be decoded
+     */
+    private Size decodeDetectionImage(int detectionSize, DocumentDetector.StepListener listener) {
+        if (this.imageRect == null) {
+            return null;
+        }
+
+        double detectionWidth = this.imageSize.width * this.frameScale;
+        double detectionHeight = this.imageSize.height * this.frameScale;
+
+        if (detectionSize > 0) {
+            double scale = Math.min(1, detectionSize / Math.max(this.imageSize.width, this.imageSize.height));
+            detectionWidth = Math.round(this.imageSize.width * scale);
+            detectionHeight = Math.round(this.imageSize.height * scale);
+        }
+
+        // scratch Mats are reused from one detection to the next
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        // decode a subsampled version of the image, just big enough for the detection
+        int sampleSize = computeSampleSize(this.imageSize.width, this.imageSize.height, detectionWidth, detectionHeight);
+
+        if (this.regionToMat(sampleSize, workspace.rgba) == 0) {
+            return null;
+        }
+
+        if (listener != null) listener.onStep("decode", workspace.rgba);
+
+        // the region is decoded as stored, only the small detection image is turned upright
+        Size storedDetectionSize = this.orientation.swapsAxes() ? new Size(detectionHeight, detectionWidth) : new Size(detectionWidth, detectionHeight);
+        Imgproc.resize(workspace.rgba, workspace.resized, storedDetectionSize, 0, 0, Imgproc.INTER_AREA);
+        if (listener != null) listener.onStep("resize", workspace.resized);
+
+        if (this.orientation.isNormal()) {
+            Imgproc.cvtColor(workspace.resized, workspace.gray, Imgproc.COLOR_RGBA2GRAY);
         } else {
-            return defaultResult;
-        }
-    }
-
-    private List<MatOfPoint> findSquares(Mat originalMat) {
-        Imgproc.cvtColor(originalMat, originalMat, Imgproc.COLOR_BGR2GRAY, 4);
-
-        /*
-         *  1. We shall first blur and normalize the image for uniformity,
-         *  2. Truncate light-gray to white and normalize,
-         *  3. Apply canny edge detection,
-         *  4. Cutoff weak edges,
-         *  5. Apply closing(morphology), then proceed to finding contours.
-         */
-        // step 1.
-        Imgproc.blur(originalMat, originalMat, new Size(KSIZE_BLUR, KSIZE_BLUR));
-        Core.normalize(originalMat, originalMat, 0, 255, Core.NORM_MINMAX);
-        if (this.debug) this.saveMatAsPicture(originalMat, "image-step1.png");
-
-        // step 2.
-        // As most papers are bright in color, we can use truncation to make it uniformly bright.
-        Imgproc.threshold(originalMat,originalMat, TRUNC_THRESH,255,Imgproc.THRESH_TRUNC);
-        Core.normalize(originalMat, originalMat, 0, 255, Core.NORM_MINMAX);
-        if (this.debug) this.saveMatAsPicture(originalMat, "image-step2.png");
-
-        // step 3.
-        // After above preprocessing, canny edge detection can now work much better.
-        Imgproc.Canny(originalMat, originalMat, CANNY_THRESH_U, CANNY_THRESH_L);
-        if (this.debug) this.saveMatAsPicture(originalMat, "image-step3.png");
-
-        // step 4.
-        // Cutoff the remaining weak edges
-        Imgproc.threshold(originalMat,originalMat,CUTOFF_THRESH,255,Imgproc.THRESH_TOZERO);
-        if (this.debug) this.saveMatAsPicture(originalMat, "image-step4.png");
-
-        // step 5.
-        // Closing - closes small gaps. Completes the edges on canny image; AND also reduces stringy lines near edge of paper.
-        Imgproc.morphologyEx(originalMat, originalMat, Imgproc.MORPH_CLOSE, morph_kernel, new Point(-1,-1),1);
-        if (this.debug) this.saveMatAsPicture(originalMat, "image-step5.png");
-
-        // Get only the 10 largest contours (each approximated to their convex hulls)
-        return findLargestContours(originalMat);
-    }
-
-    private static MatOfPoint hull2Points(MatOfInt hull, MatOfPoint contour) {
-        List<Integer> indexes = hull.toList();
-        List<Point> points = new ArrayList<>();
-        List<Point> ctrList = contour.toList();
-        for(Integer index:indexes) {
-          points.add(ctrList.get(index));
-        }
-        MatOfPoint point= new MatOfPoint();
-        point.fromList(points);
-        return point;
-    }
-
-    private static List<MatOfPoint> findLargestContours(Mat inputMat) {
-        Mat mHierarchy = new Mat();
-        List<MatOfPoint> mContourList = new ArrayList<>();
-        //finding contours - as we are sorting by area anyway, we can use RETR_LIST - faster than RETR_EXTERNAL.
-        Imgproc.findContours(inputMat, mContourList, mHierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        // Convert the contours to their Convex Hulls i.e. removes minor nuances in the contour
-        List<MatOfPoint> mHullList = new ArrayList<>();
-        MatOfInt tempHullIndices = new MatOfInt();
-        for (int i = 0; i < mContourList.size(); i++) {
-          Imgproc.convexHull(mContourList.get(i), tempHullIndices);
-          mHullList.add(hull2Points(tempHullIndices, mContourList.get(i)));
-        }
-        // Release mContourList as its job is done
-        for (MatOfPoint c : mContourList)
-          c.release();
-        tempHullIndices.release();
-        mHierarchy.release();
-
-        if (mHullList.size() != 0) {
-          Collections.sort(mHullList, new Comparator<MatOfPoint>() {
-            @Override
-            public int compare(MatOfPoint lhs, MatOfPoint rhs) {
-              return Double.compare(Imgproc.contourArea(rhs),Imgproc.contourArea(lhs));
-            }
-          });
-          return mHullList.subList(0, Math.min(mHullList.size(), 10));
+            Imgproc.cvtColor(workspace.resized, workspace.scratch, Imgproc.COLOR_RGBA2GRAY);
+            this.orientation.apply(workspace.scratch, workspace.gray);
+        }
+
+        if (listener != null) listener.onStep("gray", workspace.gray);
+
+        return new Size(detectionWidth, detectionHeight);
+    }
+
+    /**
+     * Corners found on the downscaled detection image, back to full resolution, refined, then to frame coordinates
+     */
+    private Point[] detectionToFrame(Point[] detectionPoints, double detectionWidth, DocumentDetector.StepListener listener) {
+        double detectionScale = this.imageSize.width / detectionWidth;
+        Point[] points = new Point[detectionPoints.length];
+
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(detectionPoints[i].x * detectionScale, detectionPoints[i].y * detectionScale);
+        }
+
+        this.refineCorners(points, detectionScale);
+        if (listener != null) listener.onStep("refine", null);
+
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(points[i].x * this.frameScale, points[i].y * this.frameScale);
         }
-        return null;
+
+        return points;
     }
 
-    private Point[] findLargestSquares(List<MatOfPoint> squares){
-        for (MatOfPoint c : squares) {
-            MatOfPoint2f c2f = new MatOfPoint2f(c.toArray());
-            double peri = Imgproc.arcLength(c2f, true);
-            MatOfPoint2f approx = new MatOfPoint2f();
-            Imgproc.approxPolyDP(c2f, approx, 0.02 * peri, true);
-            Point[] points = approx.toArray();
+    /**
+     * Refine corners (in image region coordinates) in full resolution windows, only these windows are decoded.
+     * Windows are refined as stored, corner detection doesn't depend on the orientation.
+     */
+    private void refineCorners(Point[] points, double detectionScale) {
+        if (this.storedRect == null) {
+            return;
+        }
+
+        // coarse corners are accurate to a couple of detection pixels
+        int halfSize = (int) Math.max(REFINE_MIN_HALF_SIZE, Math.min(REFINE_MAX_HALF_SIZE, Math.ceil(detectionScale * 2)));
+        int margin = halfSize * 2;
+
+        BitmapRegionDecoder decoder;
+
+        try {
+            decoder = BitmapRegionDecoder.newInstance(this.imagePath, false);
+        } catch (IOException e) {
+            // format not supported by the region decoder, keep coarse corners
+            return;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Mat window = new Mat();
 
-            // select biggest 4 angles polygon
-            if (approx.rows() == 4) {
-                Point[] foundPoints = sortPoints(points);
+        try {
+            for (int i = 0; i < points.length; i++) {
+                ScannerExecutor.throwIfCancelled();
+
+                Point stored = this.orientation.toStored(new Point(this.imageRect.left + points[i].x, this.imageRect.top + points[i].y));
+                int x = (int) Math.round(stored.x);
+                int y = (int) Math.round(stored.y);
+                Rect rect = new Rect(
+                    Math.max(this.storedRect.left, x - margin),
+                    Math.max(this.storedRect.top, y - margin),
+                    Math.min(this.storedRect.right, x + margin + 1),
+                    Math.min(this.storedRect.bottom, y + margin + 1)
+                );
+
+                if (rect.width() <= halfSize * 2 || rect.height() <= halfSize * 2) {
+                    continue;
+                }
 
-                if (isPossibleRectangle(foundPoints)) {
-                    return foundPoints;
+                Bitmap bitmap = decoder.decodeRegion(rect, options);
+
+                if (bitmap == null) {
+                    continue;
                 }
+
+                bitmapToMat(bitmap, window);
+                bitmap.recycle();
+                Imgproc.cvtColor(window, window, Imgproc.COLOR_RGBA2GRAY);
+
+                Point corner = new Point(stored.x - rect.left, stored.y - rect.top);
+                Point refined = DocumentDetector.refineCorner(window, corner, halfSize);
+                Point upright = this.orientation.toUpright(new Point(refined.x + rect.left, refined.y + rect.top));
+
+                points[i] = new Point(upright.x - this.imageRect.left, upright.y - this.imageRect.top);
+            }
+        } finally {
+            window.release();
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Sharpness and exposure of the frame region, decoded at a small size, null if the image can't be decoded
+     */
+    public FrameQuality.Score measureQuality() {
+        if (this.imageRect == null) {
+            return null;
+        }
+
+        double scale = Math.min(1, (double) FrameQuality.ANALYSIS_SIZE / Math.max(this.imageSize.width, this.imageSize.height));
+        int sampleSize = computeSampleSize(this.imageSize.width, this.imageSize.height, this.imageSize.width * scale, this.imageSize.height * scale);
+        Mat rgba = new Mat();
+        Mat gray = new Mat();
+        FrameQuality quality = new FrameQuality();
+
+        try {
+            if (this.regionToMat(sampleSize, rgba) == 0) {
+                return null;
             }
+
+            // both measures don't depend on the orientation
+            Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+
+            return quality.measure(gray);
+        } finally {
+            this.releaseRegion();
+            rgba.release();
+            gray.release();
+            quality.release();
+        }
+    }
+
+    /**
+     * Same image in another frame size (rotation, split-screen...), to be cropped with points of that frame.
+     * Nothing is read from the file, the decoded region is not shared.
+     */
+    public BitmapOpenCV withFrameSize(int width, int height) {
+        return new BitmapOpenCV(this, width, height);
+    }
+
+    /**
+     * Frame coordinates of this image to frame coordinates of the same image in another frame size, null if the image can't be read
+     */
+    public Point[] toFrame(Point[] points, BitmapOpenCV other) {
+        if (this.imageRect == null || other.imageRect == null) {
+            return null;
+        }
+
+        return other.imageToFrame(this.frameToImage(points));
+    }
+
+    /**
+     * Frame coordinates to coordinates normalized between 0 and 1 in the whole image
+     */
+    private Point[] frameToImage(Point[] points) {
+        Point[] imagePoints = new Point[points.length];
+
+        for (int i = 0; i < points.length; i++) {
+            imagePoints[i] = new Point(
+                (points[i].x / this.frameScale + this.imageRect.left) / this.fullSize.width,
+                (points[i].y / this.frameScale + this.imageRect.top) / this.fullSize.height
+            );
+        }
+
+        return imagePoints;
+    }
+
+    /**
+     * Normalized image coordinates to frame coordinates, clamped to the frame (the image region depends on the frame ratio)
+     */
+    private Point[] imageToFrame(Point[] points) {
+        double contentWidth = this.imageSize.width * this.frameScale;
+        double contentHeight = this.imageSize.height * this.frameScale;
+        Point[] framePoints = new Point[points.length];
+
+        for (int i = 0; i < points.length; i++) {
+            double x = (points[i].x * this.fullSize.width - this.imageRect.left) * this.frameScale;
+            double y = (points[i].y * this.fullSize.height - this.imageRect.top) * this.frameScale;
+
+            framePoints[i] = new Point(Math.min(Math.max(x, 0), contentWidth), Math.min(Math.max(y, 0), contentHeight));
+        }
+
+        return framePoints;
+    }
+
+    /**
+     * Corners of the whole image in frame coordinates, null if the image can't be read
+     */
+    public Point[] getImageCorners() {
+        if (this.imageRect == null) {
+            return null;
         }
 
-        return null;
+        double contentWidth = this.imageSize.width * this.frameScale;
+        double contentHeight = this.imageSize.height * this.frameScale;
+
+        return new Point[] {
+            new Point(0, 0),
+            new Point(contentWidth, 0),
+            new Point(contentWidth, contentHeight),
+            new Point(0, contentHeight),
+        };
+    }
+
+    /**
+     * Memory needed by the image decoded at full resolution
+     */
+    public long getImageBytes() {
+        return this.imageRect != null ? (long) this.imageSize.width * (long) this.imageSize.height * 4 : 0;
+    }
+
+    /**
+     * EXIF orientation of the image, normal if it has none
+     */
+    private static int readOrientation(String imagePath) {
+        try {
+            return new ExifInterface(imagePath).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
     }
 
-    private boolean isPossibleRectangle(Point[] approxPoints) {
-        // angles must be ~90° (+/-5°)
-        double maxcos = getMaxCosine(0, approxPoints);
+    /**
+     * Largest power of two keeping the subsampled source bigger than the destination
+     */
+    private static int computeSampleSize(double srcWidth, double srcHeight, double dstWidth, double dstHeight) {
+        int sampleSize = 1;
 
-        if (!(Math.abs(maxcos) <= 0.087)) {
-            return false;
+        while (srcWidth / (sampleSize * 2) >= dstWidth && srcHeight / (sampleSize * 2) >= dstHeight) {
+            sampleSize *= 2;
         }
 
-        // check unique points
-        HashSet<Point> uniquePoints = new HashSet<>();
+        return sampleSize;
+    }
 
-        for (Point p: approxPoints) {
-            if (!uniquePoints.add(p)) {
-                return false;
+    /**
+     * Copy the frame region of the image, subsampled by the given power of two or less, into the Mat.
+     * The decoded region is kept until a lower resolution one is needed or it is released.
+     * The lock is only held to pick or swap the region, never while decoding or copying it,
+     * so that releasing regions (memory trim callbacks on the main thread) doesn't wait for a decode.
+     * Returns the sample size of the copy, 0 if the image can't be decoded.
+     */
+    private int regionToMat(int sampleSize, Mat mat) {
+        Region region = this.acquireRegion(sampleSize);
+
+        if (region == null) {
+            Bitmap decoded = this.decodeRegion(sampleSize);
+
+            if (decoded == null) {
+                return 0;
             }
+
+            region = this.swapRegion(new Region(decoded, sampleSize), sampleSize);
+        }
+
+        try {
+            bitmapToMat(region.bitmap, mat);
+        } finally {
+            this.releaseRegion(region);
+        }
+
+        return region.sampleSize;
+    }
+
+    /**
+     * Region decoded at the given sample size or a finer one, null if there is none.
+     * It is not recycled until given back with releaseRegion(region).
+     */
+    private synchronized Region acquireRegion(int sampleSize) {
+        if (this.region == null || this.region.sampleSize > sampleSize) {
+            return null;
         }
 
-        return true;
+        this.region.users++;
+
+        return this.region;
+    }
+
+    /**
+     * Keep a newly decoded region, unless another job kept a fine enough one meanwhile, the kept region is acquired
+     */
+    private synchronized Region swapRegion(Region decoded, int sampleSize) {
+        Region region = this.acquireRegion(sampleSize);
+
+        if (region != null) {
+            decoded.bitmap.recycle();
+
+            return region;
+        }
+
+        this.dropRegion();
+        this.region = decoded;
+        decoded.users++;
+
+        return decoded;
     }
 
-    private double getMaxCosine(double maxCosine, Point[] approxPoints) {
-        for (int i = 2; i < 5; i++) {
-            double cosine = Math.abs(angle(approxPoints[i % 4], approxPoints[i - 2], approxPoints[i - 1]));
-            maxCosine = Math.max(cosine, maxCosine);
+    private synchronized void releaseRegion(Region region) {
+        region.users--;
+
+        if (region.released && region.users == 0) {
+            region.bitmap.recycle();
         }
-        return maxCosine;
     }
 
-    private double angle(Point p1, Point p2, Point p0) {
-        double dx1 = p1.x - p0.x;
-        double dy1 = p1.y - p0.y;
-        double dx2 = p2.x - p0.x;
-        double dy2 = p2.y - p0.y;
-        return (dx1 * dx2 + dy1 * dy2) / Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2) + 1e-10);
+    /**
+     * Whether the region is decoded at the given sample size or a finer one
+     */
+    private synchronized boolean hasRegion(int sampleSize) {
+        return this.region != null && this.region.sampleSize <= sampleSize;
     }
 
-    private Point[] sortPoints(Point[] src) {
-        ArrayList<Point> srcPoints = new ArrayList<>(Arrays.asList(src));
-        Point[] result = {null, null, null, null};
+    /**
+     * Free the decoded region, it will be decoded again when needed. Jobs copying it finish their copy first.
+     */
+    public synchronized void releaseRegion() {
+        this.dropRegion();
+    }
 
-        Comparator<Point> sumComparator = new Comparator<Point>() {
-            @Override
-            public int compare(Point lhs, Point rhs) {
-                return Double.compare(lhs.y + lhs.x, rhs.y + rhs.x);
+    private void dropRegion() {
+        if (this.region != null) {
+            this.region.released = true;
+
+            if (this.region.users == 0) {
+                this.region.bitmap.recycle();
             }
-        };
-        Comparator<Point> differenceComparator = new Comparator<Point>() {
-            @Override
-            public int compare(Point lhs, Point rhs) {
-                return Double.compare(lhs.y - lhs.x, rhs.y - rhs.x);
+
+            this.region = null;
+        }
+    }
+
+    /**
+     * Memory used by the decoded region
+     */
+    public synchronized long getRegionBytes() {
+        return this.region != null ? this.region.bitmap.getByteCount() : 0;
+    }
+
+    /**
+     * Decode only the frame region of the image file as stored (not upright), subsampled by the given power of two
+     */
+    private Bitmap decodeRegion(int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(this.imagePath, false);
+
+            try {
+                return decoder.decodeRegion(this.storedRect, options);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException e) {
+            // format not supported by the region decoder, decode the whole image then keep the region
+            Bitmap bitmap = BitmapFactory.decodeFile(this.imagePath, options);
+
+            if (bitmap == null) {
+                return null;
             }
-        };
 
-        result[0] = Collections.min(srcPoints, sumComparator);        // Upper left has the minimal sum
-        result[2] = Collections.max(srcPoints, sumComparator);        // Lower right has the maximal sum
-        result[1] = Collections.min(srcPoints, differenceComparator); // Upper right has the minimal difference
-        result[3] = Collections.max(srcPoints, differenceComparator); // Lower left has the maximal difference
+            Bitmap region = Bitmap.createBitmap(
+                bitmap,
+                this.storedRect.left / sampleSize,
+                this.storedRect.top / sampleSize,
+                Math.min(this.storedRect.width() / sampleSize, bitmap.getWidth() - this.storedRect.left / sampleSize),
+                Math.min(this.storedRect.height() / sampleSize, bitmap.getHeight() - this.storedRect.top / sampleSize)
+            );
 
-        return result;
+            if (region != bitmap) {
+                bitmap.recycle();
+            }
+
+            return region;
+        }
+    }
+
+    /**
+     * Listener measuring each step and/or saving its output as a picture, null if there is nothing to do
+     */
+    private DocumentDetector.StepListener createStepListener(final ScanMetrics metrics) {
+        if (metrics == null && !this.debug) {
+            return null;
+        }
+
+        return new DocumentDetector.StepListener() {
+            @Override
+            public void onStep(String name, Mat mat) {
+                if (metrics != null) metrics.lap(name, mat);
+
+                if (debug && mat != null) {
+                    saveMatAsPicture(mat, "image-" + name + ".png");
+
+                    // don't count debug pictures writing in next step
+                    if (metrics != null) metrics.skip();
+                }
+            }
+        };
     }
 
     private void saveMatAsPicture(Mat mat, String fileName) {
@@ -319,41 +680,201 @@ public class BitmapOpenCV {
         }
     }
 
-    public Bitmap fourPointTransform(Point[] pts) {
-        Point tl = new Point(pts[0].x / this.frameScale, pts[0].y / this.frameScale);
-        Point tr = new Point(pts[1].x / this.frameScale, pts[1].y / this.frameScale);
-        Point br = new Point(pts[2].x / this.frameScale, pts[2].y / this.frameScale);
-        Point bl = new Point(pts[3].x / this.frameScale, pts[3].y / this.frameScale);
+    /**
+     * Warp the document delimited by points (in frame coordinates) into a new RGBA Mat fitted into the given box
+     * (lower or equal to 0 for no constraint), to be released by the caller
+     */
+    public Mat fourPointTransform(Point[] pts, int width, int height, ScanMetrics metrics) {
+        this.checkReadable();
+
+        // points are given in frame coordinates
+        Point[] quad = new Point[4];
 
-        double w1 = Math.sqrt(Math.pow(br.x - bl.x, 2) + Math.pow(br.x - bl.x, 2));
-        double w2 = Math.sqrt(Math.pow(tr.x - tl.x, 2) + Math.pow(tr.x - tl.x, 2));
+        for (int i = 0; i < 4; i++) {
+            quad[i] = new Point(pts[i].x / this.frameScale, pts[i].y / this.frameScale);
+        }
+
+        // decode at the lowest resolution still covering the output size
+        Size documentSize = DocumentWarper.documentSize(quad);
+        Size outputSize = DocumentWarper.outputSize(quad, width, height);
+        int sampleSize = computeSampleSize(documentSize.width, documentSize.height, outputSize.width, outputSize.height);
 
-        double h1 = Math.sqrt(Math.pow(tr.y - br.y, 2) + Math.pow(tr.y - br.y, 2));
-        double h2 = Math.sqrt(Math.pow(tl.y - bl.y, 2) + Math.pow(tl.y - bl.y, 2));
+        // large images are never decoded whole, unless already decoded
+        long regionBytes = (long) (this.storedRect.width() / sampleSize) * (this.storedRect.height() / sampleSize) * 4;
 
-        double maxWidth = (w1 < w2) ? w1 : w2;
-        double maxHeight = (h1 < h2) ? h1 : h2;
+        if (regionBytes > BANDED_WARP_MIN_BYTES && !this.hasRegion(sampleSize)) {
+            Mat undistorted = this.warpInBands(this.toRegionPixels(quad, sampleSize), sampleSize, outputSize, metrics);
 
-        Mat src = new Mat(4, 1, CvType.CV_32FC2);
-        Mat dst = new Mat(4, 1, CvType.CV_32FC2);
-        src.put(0, 0, tl.x, tl.y, tr.x, tr.y, br.x, br.y, bl.x, bl.y);
-        dst.put(0, 0, 0, 0, maxWidth - 1, 0, maxWidth - 1, maxHeight - 1, 0, maxHeight - 1);
+            if (undistorted != null) {
+                return undistorted;
+            }
+        }
 
-        Mat undistorted = new Mat(new Size(maxWidth, maxHeight), CvType.CV_8UC4);
         Mat original = new Mat();
-        bitmapToMat(this.originalBitmap, original);
+        sampleSize = this.regionToMat(sampleSize, original);
 
-        Imgproc.warpPerspective(original, undistorted, Imgproc.getPerspectiveTransform(src, dst), new Size(maxWidth, maxHeight));
+        if (sampleSize == 0) {
+            throw new UnreadableImageException(this.imagePath);
+        }
 
-        Bitmap bitmap = Bitmap.createBitmap(undistorted.cols(), undistorted.rows(), Bitmap.Config.ARGB_8888);
-        matToBitmap(undistorted, bitmap);
+        if (metrics != null) metrics.lap("decode", original);
 
-        src.release();
-        dst.release();
-        undistorted.release();
+        // the target size is folded into the destination quad, no resize pass afterwards
+        Mat undistorted = DocumentWarper.warp(original, this.toRegionPixels(quad, sampleSize), (int) outputSize.width, (int) outputSize.height);
         original.release();
+        if (metrics != null) metrics.lap("warp", undistorted);
+
+        return undistorted;
+    }
+
+    /**
+     * Warp several documents (points in frame coordinates) of the image to the given size, as fourPointTransform.
+     * The region is decoded and converted once, at the finest resolution the documents need, and all of them are warped from it.
+     * Large images not decoded yet are warped in bands per document instead, each one only decodes its own part of the file.
+     * The RGBA results are to be released by the caller.
+     */
+    public Mat[] fourPointTransformAll(Point[][] pts, int width, int height, ScanMetrics metrics) {
+        this.checkReadable();
+
+        Point[][] quads = new Point[pts.length][];
+        Size[] outputSizes = new Size[pts.length];
+        int sampleSize = Integer.MAX_VALUE;
+
+        for (int i = 0; i < pts.length; i++) {
+            quads[i] = new Point[4];
+
+            for (int j = 0; j < 4; j++) {
+                quads[i][j] = new Point(pts[i][j].x / this.frameScale, pts[i][j].y / this.frameScale);
+            }
+
+            Size documentSize = DocumentWarper.documentSize(quads[i]);
+            outputSizes[i] = DocumentWarper.outputSize(quads[i], width, height);
+            sampleSize = Math.min(sampleSize, computeSampleSize(documentSize.width, documentSize.height, outputSizes[i].width, outputSizes[i].height));
+        }
+
+        Mat[] undistorted = new Mat[pts.length];
+
+        if (pts.length == 0) {
+            return undistorted;
+        }
+
+        long regionBytes = (long) (this.storedRect.width() / sampleSize) * (this.storedRect.height() / sampleSize) * 4;
+        boolean banded = regionBytes > BANDED_WARP_MIN_BYTES && !this.hasRegion(sampleSize);
+        Mat original = null;
+
+        try {
+            if (banded) {
+                for (int i = 0; i < pts.length; i++) {
+                    ScannerExecutor.throwIfCancelled();
+                    undistorted[i] = this.fourPointTransform(pts[i], width, height, metrics);
+                }
+
+                return undistorted;
+            }
+
+            original = new Mat();
+            sampleSize = this.regionToMat(sampleSize, original);
+
+            if (sampleSize == 0) {
+                throw new UnreadableImageException(this.imagePath);
+            }
+
+            if (metrics != null) metrics.lap("decode", original);
+
+            for (int i = 0; i < pts.length; i++) {
+                ScannerExecutor.throwIfCancelled();
+                undistorted[i] = DocumentWarper.warp(original, this.toRegionPixels(quads[i], sampleSize), (int) outputSizes[i].width, (int) outputSizes[i].height);
+                if (metrics != null) metrics.lap("warp", undistorted[i]);
+            }
+
+            return undistorted;
+        } catch (RuntimeException | Error e) {
+            for (Mat mat : undistorted) {
+                if (mat != null) mat.release();
+            }
+
+            throw e;
+        } finally {
+            if (original != null) original.release();
+        }
+    }
+
+    /**
+     * @throws UnreadableImageException if the image bounds couldn't be read (missing file, unsupported format)
+     */
+    private void checkReadable() {
+        if (this.storedRect == null) {
+            throw new UnreadableImageException(this.imagePath);
+        }
+    }
+
+    /**
+     * Upright image region coordinates to pixels of the region as decoded, so that the orientation is folded into the perspective transform
+     */
+    private Point[] toRegionPixels(Point[] quad, int sampleSize) {
+        Point[] pixels = new Point[4];
+
+        for (int i = 0; i < 4; i++) {
+            Point stored = this.orientation.toStored(new Point(quad[i].x + this.imageRect.left, quad[i].y + this.imageRect.top));
+            pixels[i] = new Point((stored.x - this.storedRect.left) / sampleSize, (stored.y - this.storedRect.top) / sampleSize);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Warp the quad (pixels of the region as decoded) to the output size, decoding only the part of the file each band needs.
+     * The region is neither decoded whole nor kept, so that memory is the output and a band whatever the image size.
+     * Returns null if the file format can't be decoded by region.
+     */
+    private Mat warpInBands(Point[] quad, final int sampleSize, Size outputSize, ScanMetrics metrics) {
+        final BitmapRegionDecoder decoder;
+
+        try {
+            decoder = BitmapRegionDecoder.newInstance(this.imagePath, false);
+        } catch (IOException e) {
+            return null;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // same output size as a whole region warp
+        Mat undistorted = new Mat(DocumentWarper.outputSize(quad, (int) outputSize.width, (int) outputSize.height), CvType.CV_8UC4);
+
+        try {
+            DocumentWarper.warpInBands(quad, this.storedRect.width() / sampleSize, this.storedRect.height() / sampleSize, undistorted, BANDED_WARP_BAND_BYTES, new DocumentWarper.BandSource() {
+                @Override
+                public void read(int left, int top, int right, int bottom, Mat destination) {
+                    ScannerExecutor.throwIfCancelled();
+
+                    Rect band = new Rect(
+                        storedRect.left + left * sampleSize,
+                        storedRect.top + top * sampleSize,
+                        Math.min(storedRect.right, storedRect.left + right * sampleSize),
+                        Math.min(storedRect.bottom, storedRect.top + bottom * sampleSize)
+                    );
+                    Bitmap bitmap = decoder.decodeRegion(band, options);
+
+                    if (bitmap == null) {
+                        throw new UnreadableImageException(imagePath);
+                    }
+
+                    bitmapToMat(bitmap, destination);
+                    bitmap.recycle();
+                }
+            });
+        } catch (RuntimeException e) {
+            undistorted.release();
+            throw e;
+        } finally {
+            decoder.recycle();
+        }
+
+        if (metrics != null) metrics.lap("warp", undistorted);
 
-        return bitmap;
+        return undistorted;
     }
 
 }
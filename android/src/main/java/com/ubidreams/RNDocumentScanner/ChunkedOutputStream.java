@@ -0,0 +1,87 @@
+package com.ubidreams.RNDocumentScanner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream cutting written bytes in chunks of a fixed size, so that large exports are sent without holding the whole file
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    public interface Listener {
+        /**
+         * Chunk filled (or last one, when the stream is closed), its buffer is reused after this call
+         */
+        void onChunk(int index, byte[] buffer, int length) throws IOException;
+    }
+
+    private final byte[] buffer;
+    private final Listener listener;
+    private int length = 0;
+    private int chunks = 0;
+    private long size = 0;
+    private boolean closed = false;
+
+    public ChunkedOutputStream(int chunkSize, Listener listener) {
+        this.buffer = new byte[chunkSize];
+        this.listener = listener;
+    }
+
+    public int getChunkCount() {
+        return this.chunks;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.buffer[this.length++] = (byte) b;
+        this.size++;
+
+        if (this.length == this.buffer.length) {
+            this.sendChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, this.buffer.length - this.length);
+            System.arraycopy(b, off, this.buffer, this.length, count);
+            this.length += count;
+            this.size += count;
+            off += count;
+            len -= count;
+
+            if (this.length == this.buffer.length) {
+                this.sendChunk();
+            }
+        }
+    }
+
+    /**
+     * Send the last chunk, encoders may close the stream themselves
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+
+        if (this.length > 0) {
+            this.sendChunk();
+        }
+    }
+
+    private void sendChunk() throws IOException {
+        ScannerExecutor.throwIfCancelled();
+
+        this.listener.onChunk(this.chunks++, this.buffer, this.length);
+        this.length = 0;
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.ubidreams.RNDocumentScanner;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * Options of a crop: output size, enhancement, thumbnail, encoding and whether images are kept in memory instead of files
+ */
+public class CropOptions {
+
+    public static final int THUMBNAIL_SIZE = 250;
+
+    public final int width;
+    public final int height;
+    public final boolean thumbnail;
+    public final ImageEncoder encoder;
+    // DocumentEnhancer mode, null for none
+    public final String enhance;
+    // ImageHandles instead of files
+    public final boolean handle;
+
+    public CropOptions(int width, int height, boolean thumbnail, ImageEncoder encoder, String enhance, boolean handle) {
+        this.width = width;
+        this.height = height;
+        this.thumbnail = thumbnail;
+        this.encoder = encoder;
+        this.enhance = enhance;
+        this.handle = handle;
+    }
+
+    public static CropOptions fromMap(ReadableMap options) {
+        int width = options.hasKey("width") ? options.getInt("width") : -1;
+        int height = options.hasKey("height") ? options.getInt("height") : -1;
+        boolean thumbnail = options.hasKey("thumbnail") && options.getBoolean("thumbnail");
+        String enhance = options.hasKey("enhance") ? options.getString("enhance") : null;
+        boolean handle = options.hasKey("handle") && options.getBoolean("handle");
+
+        if (!DocumentEnhancer.isMode(enhance)) {
+            enhance = null;
+        }
+
+        return new CropOptions(width, height, thumbnail, ImageEncoder.fromOptions(options), enhance, handle);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.ubidreams.RNDocumentScanner;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detection results by image file, so that a new layout of the same image is answered without decoding it again.
+ * Corners are kept normalized between 0 and 1 in the whole image, they don't depend on the layout.
+ * Files are identified by path, size and modification date: an image overwritten in place is detected again.
+ */
+public class DetectionCache {
+
+    private static final int MAX_ENTRIES = 64;
+
+    private final LinkedHashMap<String, DetectionResult> entries = new LinkedHashMap<String, DetectionResult>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DetectionResult> eldest) {
+            return this.size() > MAX_ENTRIES;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Cache key of an image detected at the given size, null if the file can't be read
+     */
+    public static String key(String imagePath, int detectionSize) {
+        File file = new File(imagePath);
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() + ":" + detectionSize;
+    }
+
+    /**
+     * Normalized result, with null points if no document was found, or null if the image has not been detected yet
+     */
+    public synchronized DetectionResult get(String key) {
+        DetectionResult result = this.entries.get(key);
+
+        if (result != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+
+        return result;
+    }
+
+    public synchronized void put(String key, DetectionResult result) {
+        this.entries.put(key, result);
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public int maxSize() {
+        return MAX_ENTRIES;
+    }
+
+}
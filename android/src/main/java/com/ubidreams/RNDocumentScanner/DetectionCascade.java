@@ -0,0 +1,469 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Document detection trying strategies from cheapest to most expensive (no Android dependency):
+ *  1. contours of the edges image (DocumentDetector.detect),
+ *  2. contours of an adaptive threshold, for low contrast scenes,
+ *  3. intersections of the longest Hough lines, for documents with broken or occluded outlines.
+ * Candidates are scored by how much of their outline separates contrasted regions, the cascade stops on the first confident one.
+ * detectAll keeps every scored candidate of the contours strategies instead, for scenes with several documents.
+ */
+public class DetectionCascade {
+
+    // confidence to stop the cascade
+    public static final double CONFIDENT = 0.75;
+    // lower confidence results are dropped
+    public static final double MIN_CONFIDENCE = 0.5;
+    // smallest document, relative to the image area
+    public static final double MIN_AREA = 0.05;
+    // smallest document when several are looked for (receipts, ID cards), relative to the image area
+    public static final double MIN_AREA_MULTIPLE = 0.01;
+    // documents returned by detectAll unless told otherwise
+    public static final int DEFAULT_MAX_DOCUMENTS = 10;
+    // hulls kept by each contours strategy when several documents are looked for
+    public static final int MAX_CONTOURS_MULTIPLE = 30;
+    // largest share of a document covered by another one, more is the same document found twice (inner and outer outline)
+    public static final double MAX_OVERLAP = 0.1;
+    // angles of documents found by fallback strategies must be ~90° (+/-20°), perspective included
+    public static final double MAX_COSINE_RELAXED = 0.34;
+    // largest long side of the adaptive threshold image, at higher resolutions paper and background merge through small gaps
+    public static final int ADAPTIVE_SIZE = 400;
+    // sampling step along the quad outline, in pixels
+    private static final int SAMPLING_STEP = 2;
+    // difference between both sides of the outline for a sample to be on the document edge (equalized image)
+    private static final int EDGE_CONTRAST = 24;
+
+    /**
+     * Find the document in a grayscale image (left untouched), null if no strategy found one
+     */
+    public static DetectionResult detect(Mat grayMat, DocumentDetector.StepListener listener) {
+        // 1. contours of edges
+        DetectionResult best = scoreContours(grayMat, listener);
+
+        if (best != null && best.confidence >= CONFIDENT) {
+            return best;
+        }
+
+        // scoring is prepared once there are candidates
+        if (best == null) {
+            prepareScoring(grayMat);
+        }
+
+        // 2. contours of adaptive threshold
+        List<Point[]> candidates = findWithAdaptiveThreshold(grayMat);
+        best = better(best, scoreBest(candidates, DetectionResult.STRATEGY_ADAPTIVE, grayMat));
+        if (listener != null) listener.onStep(DetectionResult.STRATEGY_ADAPTIVE, null);
+
+        if (best != null && best.confidence >= CONFIDENT) {
+            return best;
+        }
+
+        // 3. Hough lines
+        Point[] points = findWithHoughLines(grayMat);
+        best = better(best, points != null ? score(points, DetectionResult.STRATEGY_HOUGH, grayMat) : null);
+        if (listener != null) listener.onStep(DetectionResult.STRATEGY_HOUGH, null);
+
+        return best != null && best.confidence >= MIN_CONFIDENCE ? best : null;
+    }
+
+    /**
+     * Find the document in a grayscale image (left untouched) with the contours of edges only, null if it isn't confident enough.
+     * For tracking, where the image is a region known to hold the document and a miss falls back to a full search.
+     */
+    public static DetectionResult detectContour(Mat grayMat, DocumentDetector.StepListener listener) {
+        DetectionResult best = scoreContours(grayMat, listener);
+
+        return best != null && best.confidence >= MIN_CONFIDENCE ? best : null;
+    }
+
+    /**
+     * Best scored candidate of the edges contours strategy, null if there is no candidate (scoring isn't prepared then)
+     */
+    private static DetectionResult scoreContours(Mat grayMat, DocumentDetector.StepListener listener) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        grayMat.copyTo(workspace.scratch);
+        List<Point[]> hulls = DocumentDetector.findSquares(workspace.scratch, listener);
+        List<Point[]> candidates = hulls != null ? DocumentDetector.findSquareCandidates(hulls, DocumentDetector.MAX_COSINE) : null;
+
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+
+        prepareScoring(grayMat);
+
+        DetectionResult best = scoreBest(candidates, DetectionResult.STRATEGY_CONTOUR, grayMat);
+        if (listener != null) listener.onStep(DetectionResult.STRATEGY_CONTOUR, null);
+
+        return best;
+    }
+
+    /**
+     * Find all documents in a grayscale image (left untouched), most confident first, empty if none is found.
+     * Candidates of both contours strategies are scored, then kept from the most confident one as long as
+     * they don't overlap a document already kept. Hough lines only find the outline of a single document, they are not used.
+     */
+    public static List<DetectionResult> detectAll(Mat grayMat, int maxDocuments, DocumentDetector.StepListener listener) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        List<DetectionResult> results = new ArrayList<>();
+
+        // 1. contours of edges
+        grayMat.copyTo(workspace.scratch);
+        List<Point[]> hulls = DocumentDetector.findSquares(workspace.scratch, MAX_CONTOURS_MULTIPLE, MIN_AREA_MULTIPLE, listener);
+
+        prepareScoring(grayMat);
+
+        if (hulls != null) {
+            scoreAll(DocumentDetector.findSquareCandidates(hulls, DocumentDetector.MAX_COSINE), DetectionResult.STRATEGY_CONTOUR, grayMat, results);
+        }
+
+        if (listener != null) listener.onStep(DetectionResult.STRATEGY_CONTOUR, null);
+
+        // 2. contours of adaptive threshold
+        scoreAll(findWithAdaptiveThreshold(grayMat, MAX_CONTOURS_MULTIPLE, MIN_AREA_MULTIPLE), DetectionResult.STRATEGY_ADAPTIVE, grayMat, results);
+        if (listener != null) listener.onStep(DetectionResult.STRATEGY_ADAPTIVE, null);
+
+        // stable sort, edges contours come first on a tie
+        Collections.sort(results, new Comparator<DetectionResult>() {
+            @Override
+            public int compare(DetectionResult a, DetectionResult b) {
+                return Double.compare(b.confidence, a.confidence);
+            }
+        });
+
+        List<DetectionResult> documents = new ArrayList<>();
+
+        for (DetectionResult result : results) {
+            if (documents.size() >= maxDocuments) {
+                break;
+            }
+
+            if (!overlapsAny(result.points, documents)) {
+                documents.add(result);
+            }
+        }
+
+        if (listener != null) listener.onStep("documents", null);
+
+        return documents;
+    }
+
+    /**
+     * Blurred and equalized image (workspace.blurred, its pixels in workspace.blurredPixels to score candidates)
+     */
+    private static void prepareScoring(Mat grayMat) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        Imgproc.GaussianBlur(grayMat, workspace.blurred, new Size(5, 5), 0);
+        Imgproc.equalizeHist(workspace.blurred, workspace.blurred);
+
+        int size = (int) workspace.blurred.total();
+
+        if (workspace.blurredPixels.length != size) {
+            workspace.blurredPixels = new byte[size];
+        }
+
+        workspace.blurred.get(0, 0, workspace.blurredPixels);
+    }
+
+    private static List<Point[]> findWithAdaptiveThreshold(Mat grayMat) {
+        return findWithAdaptiveThreshold(grayMat, DocumentDetector.MAX_CONTOURS, MIN_AREA);
+    }
+
+    private static List<Point[]> findWithAdaptiveThreshold(Mat grayMat, int maxContours, double minArea) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        // regions are found at a bounded resolution, halved as needed (integer ratios keep INTER_AREA fast)
+        int scale = 1;
+
+        while (Math.max(grayMat.cols(), grayMat.rows()) / scale > ADAPTIVE_SIZE) {
+            scale *= 2;
+        }
+
+        if (scale > 1) {
+            Imgproc.resize(workspace.blurred, workspace.scratch, new Size(grayMat.cols() / scale, grayMat.rows() / scale), 0, 0, Imgproc.INTER_AREA);
+        } else {
+            workspace.blurred.copyTo(workspace.scratch);
+        }
+
+        int minSide = Math.min(workspace.scratch.cols(), workspace.scratch.rows());
+
+        // paper is brighter than its surroundings, a large block compares it with the background around its edges
+        int blockSize = Math.max(3, minSide / 4) | 1;
+        Imgproc.adaptiveThreshold(workspace.scratch, workspace.scratch, 255, Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, blockSize, -5);
+
+        // fill text and remove table texture
+        Mat kernel = workspace.getMorphKernel(Math.max(3, minSide / DocumentDetector.CLOSE_SIZE_DIVISOR));
+        Imgproc.morphologyEx(workspace.scratch, workspace.scratch, Imgproc.MORPH_CLOSE, kernel);
+        Imgproc.morphologyEx(workspace.scratch, workspace.scratch, Imgproc.MORPH_OPEN, kernel);
+
+        List<Point[]> contours = DocumentDetector.findLargestContours(workspace.scratch, maxContours, minArea);
+
+        if (contours == null) {
+            return null;
+        }
+
+        List<Point[]> candidates = DocumentDetector.findSquareCandidates(contours, MAX_COSINE_RELAXED);
+
+        for (Point[] candidate : candidates) {
+            for (Point point : candidate) {
+                point.x *= scale;
+                point.y *= scale;
+            }
+        }
+
+        return candidates;
+    }
+
+    private static Point[] findWithHoughLines(Mat grayMat) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        int width = grayMat.cols();
+        int height = grayMat.rows();
+        int minSide = Math.min(width, height);
+
+        // equalization spreads low contrast scenes, so fixed Canny thresholds fit all images
+        Imgproc.Canny(workspace.blurred, workspace.edges, DocumentDetector.CANNY_THRESH_L, DocumentDetector.CANNY_THRESH_U);
+        Imgproc.HoughLinesP(workspace.edges, workspace.lines, 1, Math.PI / 180, minSide / 4, minSide / 4, minSide / 50 + 2);
+
+        if (workspace.lines.rows() < 4) {
+            return null;
+        }
+
+        int[] lines = new int[(int) workspace.lines.total() * 4];
+        workspace.lines.get(0, 0, lines);
+
+        // outermost horizontal and vertical lines
+        int top = -1, bottom = -1, left = -1, right = -1;
+
+        for (int i = 0; i < lines.length; i += 4) {
+            double middleX = (lines[i] + lines[i + 2]) / 2.0;
+            double middleY = (lines[i + 1] + lines[i + 3]) / 2.0;
+
+            if (Math.abs(lines[i + 2] - lines[i]) >= Math.abs(lines[i + 3] - lines[i + 1])) {
+                if (top < 0 || middleY < (lines[top + 1] + lines[top + 3]) / 2.0) top = i;
+                if (bottom < 0 || middleY > (lines[bottom + 1] + lines[bottom + 3]) / 2.0) bottom = i;
+            } else {
+                if (left < 0 || middleX < (lines[left] + lines[left + 2]) / 2.0) left = i;
+                if (right < 0 || middleX > (lines[right] + lines[right + 2]) / 2.0) right = i;
+            }
+        }
+
+        if (top < 0 || left < 0 || top == bottom || left == right) {
+            return null;
+        }
+
+        Point[] points = {
+            intersect(lines, top, left),
+            intersect(lines, top, right),
+            intersect(lines, bottom, right),
+            intersect(lines, bottom, left),
+        };
+
+        // corners may be slightly out of the image, not further
+        double marginX = width * 0.05;
+        double marginY = height * 0.05;
+
+        for (Point point : points) {
+            if (point == null || point.x < -marginX || point.y < -marginY || point.x > width + marginX || point.y > height + marginY) {
+                return null;
+            }
+
+            point.x = Math.max(0, Math.min(width - 1, point.x));
+            point.y = Math.max(0, Math.min(height - 1, point.y));
+        }
+
+        points = DocumentDetector.sortPoints(points);
+
+        return DocumentDetector.isPossibleRectangle(points, MAX_COSINE_RELAXED) ? points : null;
+    }
+
+    /**
+     * Intersection of the lines (x1, y1, x2, y2) at both offsets, null if they are parallel
+     */
+    private static Point intersect(int[] lines, int a, int b) {
+        double x1 = lines[a], y1 = lines[a + 1], x2 = lines[a + 2], y2 = lines[a + 3];
+        double x3 = lines[b], y3 = lines[b + 1], x4 = lines[b + 2], y4 = lines[b + 3];
+        double denominator = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
+
+        if (Math.abs(denominator) < 1e-6) {
+            return null;
+        }
+
+        double t = ((x1 - x3) * (y3 - y4) - (y1 - y3) * (x3 - x4)) / denominator;
+
+        return new Point(x1 + t * (x2 - x1), y1 + t * (y2 - y1));
+    }
+
+    /**
+     * Confidence of a candidate: share of its outline separating contrasted sides, lowered by its angles deviation.
+     * Unlike edges pixels, this is not fooled by textured backgrounds (thin lines have the same color on both sides).
+     */
+    private static DetectionResult score(Point[] points, String strategy, Mat grayMat) {
+        return score(points, strategy, grayMat, MIN_AREA);
+    }
+
+    /**
+     * Confidence of a candidate, 0 if its area is lower than minArea (relative to the image area)
+     */
+    private static DetectionResult score(Point[] points, String strategy, Mat grayMat, double minArea) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        byte[] pixels = workspace.blurredPixels;
+        int width = grayMat.cols();
+        int height = grayMat.rows();
+
+        if (DocumentDetector.polygonArea(points) < width * height * minArea) {
+            return new DetectionResult(points, 0, strategy);
+        }
+
+        // distance to each side of the outline
+        double offset = Math.max(2, Math.min(width, height) / 100.0);
+        Point center = new Point((points[0].x + points[2].x) / 2, (points[0].y + points[2].y) / 2);
+        int samples = 0;
+        int hits = 0;
+
+        for (int i = 0; i < 4; i++) {
+            Point a = points[i];
+            Point b = points[(i + 1) % 4];
+            double length = Math.max(1, Math.hypot(b.x - a.x, b.y - a.y));
+            int steps = Math.max(1, (int) (length / SAMPLING_STEP));
+
+            // normal pointing inside the quad
+            double normalX = -(b.y - a.y) / length;
+            double normalY = (b.x - a.x) / length;
+
+            if (normalX * (center.x - a.x) + normalY * (center.y - a.y) < 0) {
+                normalX = -normalX;
+                normalY = -normalY;
+            }
+
+            // document may be lighter or darker than the background, but the same all along an edge
+            int brighter = 0;
+            int darker = 0;
+
+            for (int step = 0; step < steps; step++) {
+                double x = a.x + (b.x - a.x) * step / steps;
+                double y = a.y + (b.y - a.y) * step / steps;
+                int inside = pixel(pixels, width, height, x + normalX * offset, y + normalY * offset);
+                int outside = pixel(pixels, width, height, x - normalX * offset, y - normalY * offset);
+
+                samples++;
+
+                // outlines along the image border are not supported
+                if (outside < 0 || inside < 0) {
+                    continue;
+                }
+
+                if (inside - outside >= EDGE_CONTRAST) {
+                    brighter++;
+                } else if (outside - inside >= EDGE_CONTRAST) {
+                    darker++;
+                }
+            }
+
+            hits += Math.max(brighter, darker);
+        }
+
+        double support = samples > 0 ? (double) hits / samples : 0;
+        double rectangularity = Math.max(0, 1 - DocumentDetector.getMaxCosine(points) / MAX_COSINE_RELAXED);
+
+        return new DetectionResult(points, support * 0.8 + rectangularity * 0.2, strategy);
+    }
+
+    /**
+     * Pixel value at the point, -1 outside of the image
+     */
+    private static int pixel(byte[] pixels, int width, int height, double x, double y) {
+        int column = (int) Math.round(x);
+        int row = (int) Math.round(y);
+
+        if (column < 0 || row < 0 || column >= width || row >= height) {
+            return -1;
+        }
+
+        return pixels[row * width + column] & 0xff;
+    }
+
+    /**
+     * Best scored candidate, null if there is none
+     */
+    private static DetectionResult scoreBest(List<Point[]> candidates, String strategy, Mat grayMat) {
+        DetectionResult best = null;
+
+        if (candidates != null) {
+            for (Point[] candidate : candidates) {
+                best = better(best, score(candidate, strategy, grayMat));
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Add candidates confident enough for a scene with several documents to the results
+     */
+    private static void scoreAll(List<Point[]> candidates, String strategy, Mat grayMat, List<DetectionResult> results) {
+        if (candidates == null) {
+            return;
+        }
+
+        for (Point[] candidate : candidates) {
+            DetectionResult result = score(candidate, strategy, grayMat, MIN_AREA_MULTIPLE);
+
+            if (result.confidence >= MIN_CONFIDENCE) {
+                results.add(result);
+            }
+        }
+    }
+
+    /**
+     * Whether more than MAX_OVERLAP of the quad or of one of the documents is covered by the other
+     */
+    private static boolean overlapsAny(Point[] points, List<DetectionResult> documents) {
+        if (documents.isEmpty()) {
+            return false;
+        }
+
+        double area = DocumentDetector.polygonArea(points);
+        MatOfPoint2f quad = new MatOfPoint2f(points);
+        MatOfPoint2f other = new MatOfPoint2f();
+        Mat intersection = new Mat();
+
+        try {
+            for (DetectionResult document : documents) {
+                other.fromArray(document.points);
+
+                // corners are sorted clockwise, both quads are convex
+                double shared = Imgproc.intersectConvexConvex(quad, other, intersection, true);
+
+                if (shared > MAX_OVERLAP * Math.min(area, DocumentDetector.polygonArea(document.points))) {
+                    return true;
+                }
+            }
+
+            return false;
+        } finally {
+            quad.release();
+            other.release();
+            intersection.release();
+        }
+    }
+
+    private static DetectionResult better(DetectionResult a, DetectionResult b) {
+        if (a == null) return b;
+        if (b == null) return a;
+
+        return b.confidence > a.confidence ? b : a;
+    }
+
+}
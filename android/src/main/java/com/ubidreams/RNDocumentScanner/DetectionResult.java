@@ -0,0 +1,26 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Point;
+
+/**
+ * Document found by the detection cascade, with the strategy that found it and how confident it is
+ */
+public class DetectionResult {
+
+    public static final String STRATEGY_CONTOUR = "contour";
+    public static final String STRATEGY_ADAPTIVE = "adaptive";
+    public static final String STRATEGY_HOUGH = "hough";
+
+    // corners (top left, top right, bottom right, bottom left)
+    public final Point[] points;
+    // between 0 and 1, share of the quad outline lying on image edges weighted by its rectangularity
+    public final double confidence;
+    public final String strategy;
+
+    public DetectionResult(Point[] points, double confidence, String strategy) {
+        this.points = points;
+        this.confidence = confidence;
+        this.strategy = strategy;
+    }
+
+}
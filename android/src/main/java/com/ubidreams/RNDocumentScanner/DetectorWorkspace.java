@@ -0,0 +1,128 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+
+/**
+ * Per-thread scratch Mats reused by each detection and warp.
+ * Mats are (re)allocated by OpenCV only when the requested size or type changes,
+ * so repeated detections on same sized images do not allocate native memory.
+ * Mats are owned by the workspace: callers must never release them.
+ * Scanner pool threads release their workspace when they exit, other threads call release when done.
+ */
+public class DetectorWorkspace {
+
+    private static final ThreadLocal<DetectorWorkspace> workspaces = new ThreadLocal<>();
+
+    // detection input
+    public final Mat rgba = new Mat();
+    public final Mat resized = new Mat();
+    public final Mat gray = new Mat();
+
+    // contours
+    public final Mat hierarchy = new Mat();
+    public final MatOfInt hullIndices = new MatOfInt();
+    public final MatOfPoint2f hull2f = new MatOfPoint2f();
+    public final MatOfPoint2f approx = new MatOfPoint2f();
+    public final Mat morphKernel = new Mat(new Size(DocumentDetector.KSIZE_CLOSE, DocumentDetector.KSIZE_CLOSE), CvType.CV_8UC1, new Scalar(255));
+
+    // adaptive thresholds and detection cascade
+    public final Mat histogram = new Mat();
+    // 256 bins histogram parameters of a single channel, only read by OpenCV
+    public final MatOfInt histogramChannels = new MatOfInt(0);
+    public final MatOfInt histogramSize = new MatOfInt(256);
+    public final MatOfFloat histogramRanges = new MatOfFloat(0, 256);
+    public final Mat histogramMask = new Mat();
+    public final Mat blurred = new Mat();
+    public final Mat scratch = new Mat();
+    public final Mat edges = new Mat();
+    public final Mat lines = new Mat();
+    public byte[] blurredPixels = new byte[0];
+
+    // perspective transform
+    public final Mat srcQuad = new Mat(4, 1, CvType.CV_32FC2);
+    public final Mat dstQuad = new Mat(4, 1, CvType.CV_32FC2);
+
+    private DetectorWorkspace() {
+    }
+
+    /**
+     * Closing kernel of the given size, the same Mat is returned (and resized) on each call
+     */
+    public Mat getMorphKernel(int size) {
+        if (this.morphKernel.rows() != size) {
+            this.morphKernel.create(size, size, CvType.CV_8UC1);
+            this.morphKernel.setTo(new Scalar(255));
+        }
+
+        return this.morphKernel;
+    }
+
+    /**
+     * 256 bins histogram of a single channel 8 bits image, computed in the workspace histogram Mat
+     */
+    public float[] computeHistogram(Mat gray) {
+        Imgproc.calcHist(Collections.singletonList(gray), this.histogramChannels, this.histogramMask, this.histogram, this.histogramSize, this.histogramRanges);
+
+        float[] counts = new float[256];
+        this.histogram.get(0, 0, counts);
+
+        return counts;
+    }
+
+    /**
+     * Workspace of the current thread
+     */
+    public static DetectorWorkspace get() {
+        DetectorWorkspace workspace = workspaces.get();
+
+        if (workspace == null) {
+            workspace = new DetectorWorkspace();
+            workspaces.set(workspace);
+        }
+
+        return workspace;
+    }
+
+    /**
+     * Release the workspace of the current thread if it has one, a new one is created on next use
+     */
+    public static void release() {
+        DetectorWorkspace workspace = workspaces.get();
+
+        if (workspace == null) {
+            return;
+        }
+
+        workspaces.remove();
+
+        workspace.rgba.release();
+        workspace.resized.release();
+        workspace.gray.release();
+        workspace.hierarchy.release();
+        workspace.hullIndices.release();
+        workspace.hull2f.release();
+        workspace.approx.release();
+        workspace.morphKernel.release();
+        workspace.histogram.release();
+        workspace.histogramChannels.release();
+        workspace.histogramSize.release();
+        workspace.histogramRanges.release();
+        workspace.histogramMask.release();
+        workspace.blurred.release();
+        workspace.scratch.release();
+        workspace.edges.release();
+        workspace.lines.release();
+        workspace.srcQuad.release();
+        workspace.dstQuad.release();
+    }
+
+}
@@ -0,0 +1,367 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.opencv.android.Utils.matToBitmap;
+
+/**
+ * Crops a document and writes the image (and its thumbnail) to files.
+ * The image is warped once, the thumbnail is derived from the same intermediate and both are encoded in parallel.
+ * Several documents of an image can be cropped from a single decoded source.
+ * Pages of a PDF document are encoded straight to the document file instead,
+ * and images can be kept in memory as handles, to only be encoded when the app needs it.
+ */
+public class DocumentCropper {
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final String tag = "RNDocumentScanner";
+    private final OutputStore store;
+    private final ImageHandles handles;
+    private final ExecutorService workers;
+
+    public DocumentCropper(OutputStore store, ImageHandles handles, ExecutorService workers) {
+        this.store = store;
+        this.handles = handles;
+        this.workers = workers;
+    }
+
+    public WritableMap crop(BitmapOpenCV bitmap, Point[] pts, CropOptions options, ScanMetrics metrics) throws InterruptedException, ExecutionException, IOException {
+        return this.output(this.render(bitmap, pts, options, metrics), options, metrics);
+    }
+
+    /**
+     * Crop several documents of the same image with the same options, the source is decoded once for all of them.
+     * Results are in the order of the documents, as crop results.
+     */
+    public WritableArray cropAll(BitmapOpenCV bitmap, Point[][] pts, CropOptions options, ScanMetrics metrics) throws InterruptedException, ExecutionException, IOException {
+        Mat[] warped = bitmap.fourPointTransformAll(pts, options.width, options.height, metrics);
+        WritableArray results = Arguments.createArray();
+
+        try {
+            for (int i = 0; i < warped.length; i++) {
+                ScannerExecutor.throwIfCancelled();
+
+                // each document is handed over, then done with before the next one
+                Mat cropped = warped[i];
+                warped[i] = null;
+
+                results.pushMap(this.output(this.finish(cropped, options, metrics), options, metrics));
+            }
+        } finally {
+            for (Mat mat : warped) {
+                if (mat != null) mat.release();
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Encode a cropped RGBA image (released here) to files of the output store, or keep it as a handle
+     */
+    private WritableMap output(Mat cropped, CropOptions options, ScanMetrics metrics) throws InterruptedException, ExecutionException, IOException {
+        WritableMap result = Arguments.createMap();
+        final ImageEncoder encoder = options.encoder;
+
+        // no file until the app asks for one
+        if (options.handle) {
+            return this.keep(cropped, options, metrics);
+        }
+
+        Bitmap croppedBitmap;
+        Bitmap thumbnailBitmap = null;
+
+        try {
+            // thumbnail from the same intermediate, before it is released
+            if (options.thumbnail) {
+                Mat thumbnail = new Mat();
+                DocumentWarper.resizeToFit(cropped, thumbnail, CropOptions.THUMBNAIL_SIZE, CropOptions.THUMBNAIL_SIZE);
+                thumbnailBitmap = toBitmap(thumbnail);
+                thumbnail.release();
+                if (metrics != null) metrics.lap("thumbnail");
+            }
+
+            croppedBitmap = toBitmap(cropped);
+            if (metrics != null) metrics.lap("bitmap");
+        } catch (RuntimeException | Error e) {
+            if (thumbnailBitmap != null) thumbnailBitmap.recycle();
+            throw e;
+        } finally {
+            cropped.release();
+        }
+
+        // encode thumbnail on a worker while the image is encoded here
+        Future<File> thumbnailFuture = null;
+
+        if (thumbnailBitmap != null) {
+            final Bitmap finalThumbnailBitmap = thumbnailBitmap;
+
+            thumbnailFuture = this.workers.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    try {
+                        return saveBitmap(finalThumbnailBitmap, encoder, null);
+                    } finally {
+                        finalThumbnailBitmap.recycle();
+                    }
+                }
+            });
+        }
+
+        File croppedImageFile = null;
+        boolean saved = false;
+
+        try {
+            // save image to the output store
+            croppedImageFile = saveBitmap(croppedBitmap, encoder, metrics);
+            croppedBitmap.recycle();
+
+            // add image file path and size to result
+            result.putString("image", "file://" + croppedImageFile.getAbsolutePath());
+            result.putDouble("size", croppedImageFile.length());
+
+            if (thumbnailFuture != null) {
+                File thumbnailFile = thumbnailFuture.get();
+                thumbnailFuture = null;
+                if (metrics != null) metrics.lap("thumbnailEncode");
+
+                // add thumbnail file path and size to result
+                result.putString("thumbnail", "file://" + thumbnailFile.getAbsolutePath());
+                result.putDouble("thumbnailSize", thumbnailFile.length());
+            }
+
+            saved = true;
+        } finally {
+            if (!croppedBitmap.isRecycled()) croppedBitmap.recycle();
+
+            // on failure, files already saved are deleted: no path to them is returned
+            if (!saved && croppedImageFile != null) {
+                this.store.release(croppedImageFile.getAbsolutePath());
+            }
+
+            if (thumbnailFuture != null && !thumbnailFuture.cancel(true)) {
+                this.releaseSaved(thumbnailFuture);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Delete the file of a finished save, if it succeeded
+     */
+    private void releaseSaved(Future<File> save) {
+        try {
+            this.store.release(save.get().getAbsolutePath());
+        } catch (InterruptedException | ExecutionException e) {
+            // the save failed, there is no file
+        }
+    }
+
+    /**
+     * Encode a RGBA image (of a handle) to a new file of the output store
+     */
+    public File save(Mat mat, ImageEncoder encoder) throws IOException {
+        Bitmap bitmap = toBitmap(mat);
+
+        try {
+            return this.saveBitmap(bitmap, encoder, null);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Encode a RGBA image (of a handle) to a stream
+     */
+    public void encode(Mat mat, ImageEncoder encoder, OutputStream stream) throws IOException {
+        Bitmap bitmap = toBitmap(mat);
+
+        try {
+            if (!encoder.encode(bitmap, stream)) {
+                throw new IOException("Unable to encode image");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Crop a document as the next page of a PDF document, the page is JPEG encoded straight to the document file
+     * @param slot page reserved in the document, left out if the page fails
+     */
+    public void cropToDocument(BitmapOpenCV bitmap, Point[] pts, CropOptions options, PdfWriter document, int slot, ScanMetrics metrics) throws InterruptedException, ExecutionException, IOException {
+        final ImageEncoder encoder = options.encoder.asJpeg();
+        final Bitmap pageBitmap;
+        Mat page = this.render(bitmap, pts, options, metrics);
+
+        try {
+            pageBitmap = toBitmap(page);
+            if (metrics != null) metrics.lap("bitmap");
+        } finally {
+            page.release();
+        }
+
+        try {
+            document.addJpegPage(slot, pageBitmap.getWidth(), pageBitmap.getHeight(), new PdfWriter.ImageData() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    if (!encoder.encode(pageBitmap, stream)) {
+                        throw new IOException("Unable to encode page");
+                    }
+                }
+            });
+            if (metrics != null) metrics.lap("encode");
+        } finally {
+            pageBitmap.recycle();
+        }
+    }
+
+    /**
+     * Warp the document to the output size, then enhance it and convert it to the output color mode.
+     * The RGBA result is to be released by the caller.
+     */
+    private Mat render(BitmapOpenCV bitmap, Point[] pts, CropOptions options, ScanMetrics metrics) throws InterruptedException, ExecutionException {
+        // go opencv ! (straight to the output size)
+        return this.finish(bitmap.fourPointTransform(pts, options.width, options.height, metrics), options, metrics);
+    }
+
+    /**
+     * Enhance a warped document and convert it to the output color mode, the warped image is released on failure
+     */
+    private Mat finish(Mat cropped, CropOptions options, ScanMetrics metrics) throws InterruptedException, ExecutionException {
+        try {
+            ScannerExecutor.throwIfCancelled();
+
+            // shadows removal and contrast, in tiles on the workers
+            if (options.enhance != null) {
+                Mat enhanced = DocumentEnhancer.enhance(cropped, options.enhance, this.workers);
+                cropped.release();
+                cropped = enhanced;
+                if (metrics != null) metrics.lap("enhance");
+            }
+
+            // grayscale or bilevel output ?
+            options.encoder.applyColorMode(cropped);
+            if (metrics != null) metrics.lap("color");
+
+            return cropped;
+        } catch (InterruptedException | ExecutionException | RuntimeException | Error e) {
+            cropped.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Keep a cropped image (and its thumbnail) in memory, the result holds their handles
+     */
+    private WritableMap keep(Mat cropped, CropOptions options, ScanMetrics metrics) {
+        WritableMap result = Arguments.createMap();
+        Mat thumbnail = null;
+
+        try {
+            if (options.thumbnail) {
+                thumbnail = new Mat();
+                DocumentWarper.resizeToFit(cropped, thumbnail, CropOptions.THUMBNAIL_SIZE, CropOptions.THUMBNAIL_SIZE);
+                if (metrics != null) metrics.lap("thumbnail");
+            }
+        } catch (RuntimeException | Error e) {
+            cropped.release();
+            if (thumbnail != null) thumbnail.release();
+            throw e;
+        }
+
+        // the registry owns the images once added, they may be released by other jobs
+        result.putInt("width", cropped.cols());
+        result.putInt("height", cropped.rows());
+        result.putString("handle", this.handles.add(cropped));
+
+        if (thumbnail != null) {
+            result.putString("thumbnailHandle", this.handles.add(thumbnail));
+        }
+
+        return result;
+    }
+
+    private static Bitmap toBitmap(Mat mat) {
+        Bitmap bitmap = Bitmap.createBitmap(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
+        matToBitmap(mat, bitmap);
+
+        return bitmap;
+    }
+
+    /**
+     * Save bitmap as a new file of the output store.
+     * When metrics are enabled, encoding is done in memory first so that encoding and writing are measured separately.
+     * @throws IOException if the image can't be encoded or written, the partial file is deleted
+     */
+    private File saveBitmap(Bitmap bitmap, ImageEncoder encoder, ScanMetrics metrics) throws IOException {
+        File imageFile = this.store.newFile(encoder.getExtension());
+        OutputStream os = null;
+        boolean saved = false;
+
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(imageFile), OUTPUT_BUFFER_SIZE);
+            boolean encoded;
+
+            if (metrics != null) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                encoded = encoder.encode(bitmap, bos);
+                metrics.lap("encode");
+
+                if (encoded) {
+                    bos.writeTo(os);
+                    os.flush();
+                    metrics.lap("write");
+                }
+            } else {
+                encoded = encoder.encode(bitmap, os);
+            }
+
+            if (!encoded) {
+                throw new IOException("Unable to encode image");
+            }
+
+            os.close();
+            os = null;
+            this.store.add(imageFile);
+            saved = true;
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    Log.d(tag, "Error closing file output stream");
+                    e.printStackTrace();
+                }
+            }
+
+            if (!saved && imageFile.exists() && !imageFile.delete()) {
+                Log.d(tag, "Unable to delete partial file " + imageFile.getAbsolutePath());
+            }
+        }
+
+        return imageFile;
+    }
+
+}
@@ -0,0 +1,408 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Document edges detection working on grayscale Mats only (no Android dependency)
+ */
+public class DocumentDetector {
+
+    /**
+     * Called at the end of each step with its output (null when the step has no image output)
+     */
+    public interface StepListener {
+        void onStep(String name, Mat mat);
+    }
+
+    /**
+     * Thresholds of the edges detection, derived from the image histogram
+     */
+    public static class Thresholds {
+        public final double trunc;
+        public final double cannyLow;
+        public final double cannyHigh;
+        public final int closeSize;
+
+        public Thresholds(double trunc, double cannyLow, double cannyHigh, int closeSize) {
+            this.trunc = trunc;
+            this.cannyLow = cannyLow;
+            this.cannyHigh = cannyHigh;
+            this.closeSize = closeSize;
+        }
+    }
+
+    public static int KSIZE_BLUR = 3;
+    public static int KSIZE_CLOSE = 10;
+    public static final int CANNY_THRESH_L = 85;
+    public static final int CANNY_THRESH_U = 185;
+    public static final int TRUNC_THRESH = 150;
+    public static final int CUTOFF_THRESH = 155;
+    // bounds of the adaptive thresholds, around the fixed ones tuned on well lit photos
+    public static final int TRUNC_THRESH_MIN = 90;
+    public static final int TRUNC_THRESH_MAX = 210;
+    public static final int CANNY_THRESH_L_MIN = 20;
+    public static final int CANNY_THRESH_U_MAX = 220;
+    // closing kernel follows image size, KSIZE_CLOSE fits a ~400px wide layout
+    public static final int CLOSE_SIZE_DIVISOR = 40;
+
+    public static final int MAX_CONTOURS = 10;
+    public static final double MAX_COSINE = 0.087;
+    public static final int REFINE_ITERATIONS = 30;
+    public static final double REFINE_EPSILON = 0.05;
+
+    /**
+     * Find the document corners (top left, top right, bottom right, bottom left) in a grayscale image.
+     * The image is modified in place, returns null when no document is found.
+     */
+    public static Point[] detect(Mat grayMat, StepListener listener) {
+        List<Point[]> squares = findSquares(grayMat, listener);
+
+        if (squares == null) {
+            return null;
+        }
+
+        Point[] points = findLargestSquares(squares);
+        if (listener != null) listener.onStep("polygons", null);
+
+        return points;
+    }
+
+    public static List<Point[]> findSquares(Mat grayMat, StepListener listener) {
+        return findSquares(grayMat, MAX_CONTOURS, DetectionCascade.MIN_AREA, listener);
+    }
+
+    /**
+     * Largest hulls of the edges image, more than the 10 default ones and smaller ones when several documents are looked for
+     */
+    public static List<Point[]> findSquares(Mat grayMat, int maxContours, double minArea, StepListener listener) {
+        findEdges(grayMat, listener);
+
+        // Get only the largest contours (each approximated to their convex hulls)
+        List<Point[]> contours = findLargestContours(grayMat, maxContours, minArea);
+        if (listener != null) listener.onStep("contours", null);
+
+        return contours;
+    }
+
+    /**
+     * Refine a corner found on a downscaled image, in a grayscale window of the full resolution image.
+     * The corner is given in window coordinates, it is kept as is when the refinement drifts out of the search window.
+     */
+    public static Point refineCorner(Mat grayWindow, Point corner, int halfSize) {
+        MatOfPoint2f corners = new MatOfPoint2f(corner);
+
+        Imgproc.cornerSubPix(grayWindow, corners, new Size(halfSize, halfSize), new Size(-1, -1),
+            new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, REFINE_ITERATIONS, REFINE_EPSILON));
+
+        Point refined = corners.toArray()[0];
+        corners.release();
+
+        if (Math.abs(refined.x - corner.x) > halfSize || Math.abs(refined.y - corner.y) > halfSize) {
+            return corner;
+        }
+
+        return refined;
+    }
+
+    /**
+     * Turn the grayscale image into a closed edges image, in place
+     */
+    public static void findEdges(Mat grayMat, StepListener listener) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        /*
+         *  1. We shall first blur and normalize the image for uniformity,
+         *  2. Truncate light-gray to white and normalize,
+         *  3. Apply canny edge detection,
+         *  4. Cutoff weak edges,
+         *  5. Apply closing(morphology), then proceed to finding contours.
+         */
+        // step 1.
+        Imgproc.blur(grayMat, grayMat, new Size(KSIZE_BLUR, KSIZE_BLUR));
+        Core.normalize(grayMat, grayMat, 0, 255, Core.NORM_MINMAX);
+        if (listener != null) listener.onStep("blur", grayMat);
+
+        // thresholds from the histogram of the normalized image, instead of fixed ones
+        Thresholds thresholds = computeThresholds(grayMat);
+        if (listener != null) listener.onStep("thresholds", null);
+
+        // step 2.
+        // As most papers are bright in color, we can use truncation to make it uniformly bright.
+        Imgproc.threshold(grayMat, grayMat, thresholds.trunc, 255, Imgproc.THRESH_TRUNC);
+        Core.normalize(grayMat, grayMat, 0, 255, Core.NORM_MINMAX);
+        if (listener != null) listener.onStep("truncate", grayMat);
+
+        // step 3.
+        // After above preprocessing, canny edge detection can now work much better.
+        Imgproc.Canny(grayMat, grayMat, thresholds.cannyHigh, thresholds.cannyLow);
+        if (listener != null) listener.onStep("canny", grayMat);
+
+        // step 4.
+        // Cutoff the remaining weak edges
+        Imgproc.threshold(grayMat, grayMat, CUTOFF_THRESH, 255, Imgproc.THRESH_TOZERO);
+        if (listener != null) listener.onStep("cutoff", grayMat);
+
+        // step 5.
+        // Closing - closes small gaps. Completes the edges on canny image; AND also reduces stringy lines near edge of paper.
+        Imgproc.morphologyEx(grayMat, grayMat, Imgproc.MORPH_CLOSE, workspace.getMorphKernel(thresholds.closeSize), new Point(-1,-1),1);
+        if (listener != null) listener.onStep("close", grayMat);
+    }
+
+    /**
+     * Thresholds for a blurred and normalized grayscale image, from a single histogram pass:
+     *  - truncation halfway between the median (background) and the 90th percentile (paper),
+     *  - Canny thresholds around the median of the truncated image (+/-33%),
+     *  - closing kernel proportional to the image size.
+     * Each threshold is bounded around the fixed one, which it equals on a typical well lit photo.
+     */
+    public static Thresholds computeThresholds(Mat grayMat) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        float[] histogram = workspace.computeHistogram(grayMat);
+
+        double median = percentile(histogram, grayMat.total(), 0.5);
+        double high = percentile(histogram, grayMat.total(), 0.9);
+
+        double trunc = Math.max(TRUNC_THRESH_MIN, Math.min(TRUNC_THRESH_MAX, (median + high) / 2));
+
+        // median once truncated and normalized again
+        double truncatedMedian = Math.min(median, trunc) * 255 / trunc;
+        double cannyLow = Math.max(CANNY_THRESH_L_MIN, truncatedMedian * 0.67);
+        double cannyHigh = Math.min(CANNY_THRESH_U_MAX, Math.max(cannyLow * 2, truncatedMedian * 1.33));
+
+        int closeSize = Math.max(3, Math.min(KSIZE_CLOSE * 2, Math.round(Math.min(grayMat.cols(), grayMat.rows()) / (float) CLOSE_SIZE_DIVISOR)));
+
+        return new Thresholds(trunc, cannyLow, cannyHigh, closeSize);
+    }
+
+    static double percentile(float[] histogram, long total, double percentile) {
+        double target = total * percentile;
+        double count = 0;
+
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+
+            if (count >= target) {
+                return i;
+            }
+        }
+
+        return histogram.length - 1;
+    }
+
+    private static Point[] hull2Points(MatOfInt hull, MatOfPoint contour) {
+        int[] indexes = hull.toArray();
+        Point[] ctrList = contour.toArray();
+        Point[] points = new Point[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+          points[i] = ctrList[indexes[i]];
+        }
+        return points;
+    }
+
+    /**
+     * Area of a polygon (shoelace formula), same result as Imgproc.contourArea without a JNI call
+     */
+    static double polygonArea(Point[] polygon) {
+        double area = 0;
+
+        for (int i = 0, j = polygon.length - 1; i < polygon.length; j = i++) {
+            area += (polygon[j].x + polygon[i].x) * (polygon[j].y - polygon[i].y);
+        }
+
+        return Math.abs(area / 2);
+    }
+
+    /**
+     * Hulls are returned as plain points arrays, so that nothing native has to be released by the caller
+     */
+    public static List<Point[]> findLargestContours(Mat inputMat) {
+        return findLargestContours(inputMat, MAX_CONTOURS, DetectionCascade.MIN_AREA);
+    }
+
+    /**
+     * Largest hulls, contours smaller than minArea (relative to the image area) are dropped before their hull is built
+     */
+    public static List<Point[]> findLargestContours(Mat inputMat, int maxContours, double minArea) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        List<MatOfPoint> mContourList = new ArrayList<>();
+        //finding contours - as we are sorting by area anyway, we can use RETR_LIST - faster than RETR_EXTERNAL.
+        Imgproc.findContours(inputMat, mContourList, workspace.hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+
+        // Keep the largest Convex Hulls i.e. removes minor nuances in the contour.
+        // Each area is computed once, and hulls are inserted in a small sorted array instead of sorting them all.
+        Point[][] largestHulls = new Point[maxContours][];
+        double[] largestAreas = new double[maxContours];
+        int count = 0;
+        double minPixels = inputMat.total() * minArea;
+
+        for (int i = 0; i < mContourList.size(); i++) {
+          // the hull can't be larger than the bounding box: no hull for contours too small for a document or for the kept ones
+          double boundsArea = Imgproc.boundingRect(mContourList.get(i)).area();
+          if (boundsArea < minPixels || (count == maxContours && boundsArea <= largestAreas[count - 1]))
+            continue;
+          Imgproc.convexHull(mContourList.get(i), workspace.hullIndices);
+          // a hull with less than 4 points can't be approximated to a 4 angles polygon
+          if (workspace.hullIndices.rows() < 4)
+            continue;
+          Point[] hull = hull2Points(workspace.hullIndices, mContourList.get(i));
+          double area = polygonArea(hull);
+          if (count == maxContours && area <= largestAreas[count - 1])
+            continue;
+          int position = Math.min(count, maxContours - 1);
+          while (position > 0 && largestAreas[position - 1] < area) {
+            largestAreas[position] = largestAreas[position - 1];
+            largestHulls[position] = largestHulls[position - 1];
+            position--;
+          }
+          largestAreas[position] = area;
+          largestHulls[position] = hull;
+          count = Math.min(count + 1, maxContours);
+        }
+        // Release mContourList as its job is done
+        for (MatOfPoint c : mContourList)
+          c.release();
+
+        if (count != 0) {
+          return Arrays.asList(largestHulls).subList(0, count);
+        }
+        return null;
+    }
+
+    public static Point[] findLargestSquares(List<Point[]> squares){
+        return findLargestSquares(squares, MAX_COSINE);
+    }
+
+    /**
+     * Largest 4 angles polygon whose angles cosines are lower than maxCosine
+     */
+    public static Point[] findLargestSquares(List<Point[]> squares, double maxCosine) {
+        for (Point[] c : squares) {
+            // select biggest 4 angles polygon
+            Point[] foundPoints = approximateQuad(c, maxCosine);
+
+            if (foundPoints != null) {
+                return foundPoints;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * All 4 angles polygons whose angles cosines are lower than maxCosine, largest first
+     */
+    public static List<Point[]> findSquareCandidates(List<Point[]> squares, double maxCosine) {
+        List<Point[]> candidates = new ArrayList<>();
+
+        for (Point[] c : squares) {
+            Point[] foundPoints = approximateQuad(c, maxCosine);
+
+            if (foundPoints != null) {
+                candidates.add(foundPoints);
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Sorted corners of the hull if it is approximated by a possible rectangle, null otherwise
+     */
+    private static Point[] approximateQuad(Point[] hull, double maxCosine) {
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+
+        workspace.hull2f.fromArray(hull);
+        double peri = Imgproc.arcLength(workspace.hull2f, true);
+        Imgproc.approxPolyDP(workspace.hull2f, workspace.approx, 0.02 * peri, true);
+
+        if (workspace.approx.rows() == 4) {
+            Point[] foundPoints = sortPoints(workspace.approx.toArray());
+
+            if (isPossibleRectangle(foundPoints, maxCosine)) {
+                return foundPoints;
+            }
+        }
+
+        return null;
+    }
+
+    public static boolean isPossibleRectangle(Point[] approxPoints, double maxCosine) {
+        // angles must be ~90° (+/-5° by default)
+        double maxcos = getMaxCosine(approxPoints);
+
+        if (!(Math.abs(maxcos) <= maxCosine)) {
+            return false;
+        }
+
+        // check unique points
+        HashSet<Point> uniquePoints = new HashSet<>();
+
+        for (Point p: approxPoints) {
+            if (!uniquePoints.add(p)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static double getMaxCosine(Point[] approxPoints) {
+        double maxCosine = 0;
+
+        for (int i = 2; i < 5; i++) {
+            double cosine = Math.abs(angle(approxPoints[i % 4], approxPoints[i - 2], approxPoints[i - 1]));
+            maxCosine = Math.max(cosine, maxCosine);
+        }
+        return maxCosine;
+    }
+
+    private static double angle(Point p1, Point p2, Point p0) {
+        double dx1 = p1.x - p0.x;
+        double dy1 = p1.y - p0.y;
+        double dx2 = p2.x - p0.x;
+        double dy2 = p2.y - p0.y;
+        return (dx1 * dx2 + dy1 * dy2) / Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2) + 1e-10);
+    }
+
+    public static Point[] sortPoints(Point[] src) {
+        ArrayList<Point> srcPoints = new ArrayList<>(Arrays.asList(src));
+        Point[] result = {null, null, null, null};
+
+        Comparator<Point> sumComparator = new Comparator<Point>() {
+            @Override
+            public int compare(Point lhs, Point rhs) {
+                return Double.compare(lhs.y + lhs.x, rhs.y + rhs.x);
+            }
+        };
+        Comparator<Point> differenceComparator = new Comparator<Point>() {
+            @Override
+            public int compare(Point lhs, Point rhs) {
+                return Double.compare(lhs.y - lhs.x, rhs.y - rhs.x);
+            }
+        };
+
+        result[0] = Collections.min(srcPoints, sumComparator);        // Upper left has the minimal sum
+        result[2] = Collections.max(srcPoints, sumComparator);        // Lower right has the maximal sum
+        result[1] = Collections.min(srcPoints, differenceComparator); // Upper right has the minimal difference
+        result[3] = Collections.max(srcPoints, differenceComparator); // Lower left has the maximal difference
+
+        return result;
+    }
+
+}
@@ -0,0 +1,225 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Enhancement of a warped document (no Android dependency): shadows are removed by dividing the page by its background,
+ * then contrast is stretched, and in "bw" mode the page is binarized for OCR.
+ * Background and contrast are estimated once on a small image, the full resolution page is then processed
+ * in horizontal tiles on a thread pool. Tiles overlap by the binarization block radius, so that results are seamless.
+ */
+public class DocumentEnhancer {
+
+    public static final String MODE_COLOR = "color";
+    public static final String MODE_GRAYSCALE = "grayscale";
+    public static final String MODE_BW = "bw";
+
+    // long side of the image the background is estimated on
+    private static final int BACKGROUND_SIZE = 256;
+    // removes text from the background, relative to the background long side
+    private static final int BACKGROUND_DILATE_SIZE = 7;
+    private static final int BACKGROUND_BLUR_SIZE = 21;
+    // share of darkest and lightest pixels saturated by the contrast stretch
+    private static final double STRETCH_LOW_PERCENTILE = 0.02;
+    private static final double STRETCH_HIGH_PERCENTILE = 0.99;
+    // binarization block size relative to the page short side, and offset below the local mean
+    private static final int BW_BLOCK_DIVISOR = 50;
+    private static final int BW_OFFSET = 10;
+    // no tile smaller than this number of rows
+    private static final int MIN_TILE_ROWS = 64;
+
+    public static boolean isMode(String mode) {
+        return MODE_COLOR.equals(mode) || MODE_GRAYSCALE.equals(mode) || MODE_BW.equals(mode);
+    }
+
+    /**
+     * Enhance a RGBA page into a new RGBA Mat, to be released by the caller.
+     * Tiles run on the workers, or the whole page on the calling thread when workers is null.
+     */
+    public static Mat enhance(final Mat rgba, final String mode, ExecutorService workers) throws InterruptedException, ExecutionException {
+        final boolean color = MODE_COLOR.equals(mode);
+        final Mat destination = new Mat(rgba.size(), CvType.CV_8UC4);
+        final Mat background = new Mat();
+        final double[] stretch = estimate(rgba, color, background);
+
+        // binarization looks at a block around each pixel, tiles read that much of their neighbours
+        final int blockSize = getBlockSize(rgba);
+        final int overlap = MODE_BW.equals(mode) ? blockSize / 2 + 1 : 0;
+
+        try {
+            if (workers == null) {
+                enhanceTile(rgba, destination, background, stretch, mode, blockSize, 0, rgba.rows(), 0);
+                return destination;
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            final int tileRows = Math.max(MIN_TILE_ROWS, (rgba.rows() + threads - 1) / threads);
+            List<Future<?>> futures = new ArrayList<>();
+
+            try {
+                for (int top = 0; top < rgba.rows(); top += tileRows) {
+                    final int tileTop = top;
+                    final int tileBottom = Math.min(rgba.rows(), top + tileRows);
+
+                    futures.add(workers.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            enhanceTile(rgba, destination, background, stretch, mode, blockSize, tileTop, tileBottom, overlap);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+
+                futures.clear();
+            } finally {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+
+            return destination;
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            destination.release();
+            throw e;
+        } finally {
+            background.release();
+        }
+    }
+
+    /**
+     * Binarize a gray page in place, for OCR and bilevel output
+     */
+    public static void binarize(Mat gray) {
+        binarize(gray, getBlockSize(gray));
+    }
+
+    /**
+     * Binarize gray rows in place, with the block size of the whole page
+     */
+    private static void binarize(Mat gray, int blockSize) {
+        Imgproc.adaptiveThreshold(gray, gray, 255, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C, Imgproc.THRESH_BINARY, blockSize, BW_OFFSET);
+    }
+
+    /**
+     * Binarization block size, following the page size so that text strokes are kept whatever the resolution
+     */
+    private static int getBlockSize(Mat page) {
+        return Math.max(3, Math.min(page.cols(), page.rows()) / BW_BLOCK_DIVISOR) | 1;
+    }
+
+    /**
+     * Background of the page (RGBA in color mode, gray otherwise) at a small size, and the contrast stretch
+     * (scale and offset) of the page divided by its background
+     */
+    private static double[] estimate(Mat rgba, boolean color, Mat background) {
+        Mat small = new Mat();
+        Mat normalized = new Mat();
+
+        try {
+            double scale = Math.min(1, (double) BACKGROUND_SIZE / Math.max(rgba.cols(), rgba.rows()));
+            Size size = new Size(Math.max(1, Math.round(rgba.cols() * scale)), Math.max(1, Math.round(rgba.rows() * scale)));
+            Imgproc.resize(rgba, small, size, 0, 0, Imgproc.INTER_AREA);
+
+            if (!color) {
+                Imgproc.cvtColor(small, small, Imgproc.COLOR_RGBA2GRAY);
+            }
+
+            // paper is the brightest large area, text and thin lines are dilated away
+            Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(BACKGROUND_DILATE_SIZE, BACKGROUND_DILATE_SIZE));
+            Imgproc.dilate(small, background, kernel);
+            kernel.release();
+            Imgproc.medianBlur(background, background, BACKGROUND_BLUR_SIZE);
+
+            // percentiles of the shadow-free luminance
+            Core.divide(small, background, normalized, 255);
+
+            if (color) {
+                Imgproc.cvtColor(normalized, normalized, Imgproc.COLOR_RGBA2GRAY);
+            }
+
+            // histogram computed in the workspace, nothing native allocated per page
+            float[] histogram = DetectorWorkspace.get().computeHistogram(normalized);
+            double low = DocumentDetector.percentile(histogram, normalized.total(), STRETCH_LOW_PERCENTILE);
+            double high = Math.max(low + 1, DocumentDetector.percentile(histogram, normalized.total(), STRETCH_HIGH_PERCENTILE));
+            double alpha = 255 / (high - low);
+
+            return new double[] {alpha, -low * alpha};
+        } finally {
+            small.release();
+            normalized.release();
+        }
+    }
+
+    /**
+     * Enhance rows [top, bottom) of the page into the same rows of the destination, reading overlap rows around them
+     */
+    private static void enhanceTile(Mat rgba, Mat destination, Mat background, double[] stretch, String mode, int blockSize, int top, int bottom, int overlap) {
+        int readTop = Math.max(0, top - overlap);
+        int readBottom = Math.min(rgba.rows(), bottom + overlap);
+
+        Mat source = rgba.rowRange(readTop, readBottom);
+        Mat tileBackground = new Mat();
+        Mat tile = new Mat();
+
+        try {
+            // background upscaled for these rows only, with the same mapping as a whole page resize
+            double scaleX = (double) background.cols() / rgba.cols();
+            double scaleY = (double) background.rows() / rgba.rows();
+            Mat transform = new Mat(2, 3, CvType.CV_64F);
+            transform.put(0, 0,
+                scaleX, 0, (scaleX - 1) / 2,
+                0, scaleY, (readTop + 0.5) * scaleY - 0.5
+            );
+            Imgproc.warpAffine(background, tileBackground, transform, source.size(), Imgproc.INTER_LINEAR | Imgproc.WARP_INVERSE_MAP, Core.BORDER_REPLICATE, new Scalar(0));
+            transform.release();
+
+            if (MODE_COLOR.equals(mode)) {
+                Core.divide(source, tileBackground, tile, 255);
+            } else {
+                Imgproc.cvtColor(source, tile, Imgproc.COLOR_RGBA2GRAY);
+                Core.divide(tile, tileBackground, tile, 255);
+            }
+
+            // alpha stays opaque: it is 255 before the stretch, and the stretch only saturates it
+            tile.convertTo(tile, -1, stretch[0], stretch[1]);
+
+            if (MODE_BW.equals(mode)) {
+                binarize(tile, blockSize);
+            }
+
+            // only the rows of this tile, overlap rows belong to neighbours
+            Mat output = tile.rowRange(top - readTop, bottom - readTop);
+            Mat target = destination.rowRange(top, bottom);
+
+            if (MODE_COLOR.equals(mode)) {
+                output.copyTo(target);
+            } else {
+                Imgproc.cvtColor(output, target, Imgproc.COLOR_GRAY2RGBA);
+            }
+
+            output.release();
+            target.release();
+        } finally {
+            source.release();
+            tileBackground.release();
+            tile.release();
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Perspective correction working on Mats only (no Android dependency)
+ */
+public class DocumentWarper {
+
+    /**
+     * Source read band by band, so that it never has to be in memory as a whole
+     */
+    public interface BandSource {
+        /**
+         * Copy the source rectangle (left, top, right, bottom, right and bottom excluded) into the Mat
+         */
+        void read(int left, int top, int right, int bottom, Mat destination);
+    }
+
+    // smallest band side, bands are only halved while their source rectangle exceeds the byte budget
+    private static final int MIN_BAND_ROWS = 8;
+    // extra source pixels around a band, read by the bilinear interpolation
+    private static final int BAND_MARGIN = 2;
+
+    /**
+     * Size of an image fitted into the given box, keeping its ratio.
+     * A box side lower or equal to 0 is not constrained.
+     */
+    public static Size fitSize(double imageWidth, double imageHeight, int width, int height) {
+        double ratio;
+
+        if (width < 0) width = 0;
+        if (height < 0) height = 0;
+
+        double ratioX = width / imageWidth;
+        double ratioY = height / imageHeight;
+
+        if (ratioX == 0 || ratioY == 0) {
+            if (ratioX > 0) {
+                ratio = ratioX;
+            } else {
+                ratio = ratioY;
+            }
+        } else {
+            ratio = Math.min(ratioX, ratioY);
+        }
+
+        return new Size(Math.max(1, (int) (imageWidth * ratio)), Math.max(1, (int) (imageHeight * ratio)));
+    }
+
+    /**
+     * Resize an image to fit into the given box, keeping its ratio
+     */
+    public static void resizeToFit(Mat source, Mat destination, int width, int height) {
+        Size size = fitSize(source.cols(), source.rows(), width, height);
+
+        if (size.width == source.cols() && size.height == source.rows()) {
+            source.copyTo(destination);
+        } else {
+            Imgproc.resize(source, destination, size, 0, 0, size.width < source.cols() ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR);
+        }
+    }
+
+    /**
+     * Size in pixels of the document delimited by the quad, its longest opposite edges are kept
+     */
+    public static Size documentSize(Point[] pts) {
+        Point tl = pts[0];
+        Point tr = pts[1];
+        Point br = pts[2];
+        Point bl = pts[3];
+
+        double w1 = Math.hypot(br.x - bl.x, br.y - bl.y);
+        double w2 = Math.hypot(tr.x - tl.x, tr.y - tl.y);
+
+        double h1 = Math.hypot(tr.x - br.x, tr.y - br.y);
+        double h2 = Math.hypot(tl.x - bl.x, tl.y - bl.y);
+
+        return new Size(Math.max(1, Math.round(Math.max(w1, w2))), Math.max(1, Math.round(Math.max(h1, h2))));
+    }
+
+    /**
+     * Size of the warped document fitted into the given box (document size when the box is not constrained)
+     */
+    public static Size outputSize(Point[] pts, int width, int height) {
+        Size size = documentSize(pts);
+
+        if (width <= 0 && height <= 0) {
+            return size;
+        }
+
+        return fitSize(size.width, size.height, width, height);
+    }
+
+    /**
+     * Warp the quad (top left, top right, bottom right, bottom left) of the source image into a new rectangle image
+     */
+    public static Mat warp(Mat source, Point[] pts) {
+        return warp(source, pts, -1, -1);
+    }
+
+    /**
+     * Warp the quad of the source image straight into a rectangle image fitted into the given box
+     */
+    public static Mat warp(Mat source, Point[] pts, int width, int height) {
+        Point tl = pts[0];
+        Point tr = pts[1];
+        Point br = pts[2];
+        Point bl = pts[3];
+
+        Size size = outputSize(pts, width, height);
+
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        Mat src = workspace.srcQuad;
+        Mat dst = workspace.dstQuad;
+        src.put(0, 0, tl.x, tl.y, tr.x, tr.y, br.x, br.y, bl.x, bl.y);
+        dst.put(0, 0, 0, 0, size.width - 1, 0, size.width - 1, size.height - 1, 0, size.height - 1);
+
+        Mat undistorted = new Mat(size, source.type());
+
+        Mat perspective = Imgproc.getPerspectiveTransform(src, dst);
+        Imgproc.warpPerspective(source, undistorted, perspective, size);
+        perspective.release();
+
+        return undistorted;
+    }
+
+    /**
+     * Warp the quad of a source of the given size into the destination (allocated to the output size), in horizontal bands.
+     * Each band reads only the source rectangle it maps to, of at most bandBytes (4 bytes per pixel): bands over budget
+     * are split in halves, across their longer side (rotated documents), so that memory doesn't depend on the source size.
+     */
+    public static void warpInBands(Point[] pts, int sourceWidth, int sourceHeight, Mat destination, long bandBytes, BandSource source) {
+        int width = destination.cols();
+        int height = destination.rows();
+
+        // destination to source mapping
+        DetectorWorkspace workspace = DetectorWorkspace.get();
+        Mat src = workspace.srcQuad;
+        Mat dst = workspace.dstQuad;
+        src.put(0, 0, pts[0].x, pts[0].y, pts[1].x, pts[1].y, pts[2].x, pts[2].y, pts[3].x, pts[3].y);
+        dst.put(0, 0, 0, 0, width - 1, 0, width - 1, height - 1, 0, height - 1);
+
+        Mat perspective = Imgproc.getPerspectiveTransform(src, dst);
+        Mat inverse = perspective.inv();
+        double[] h = new double[9];
+        inverse.get(0, 0, h);
+        perspective.release();
+        inverse.release();
+
+        Mat band = new Mat();
+        Mat bandTransform = new Mat(3, 3, CvType.CV_64F);
+        // as many rows as the budget allows for a band as wide as the source
+        int rows = (int) Math.max(MIN_BAND_ROWS, Math.min(height, bandBytes / 4 / Math.max(1, sourceWidth)));
+
+        try {
+            for (int top = 0; top < height; top += rows) {
+                warpBlock(h, destination, 0, top, width, Math.min(height, top + rows), sourceWidth, sourceHeight, bandBytes, source, band, bandTransform);
+            }
+        } finally {
+            band.release();
+            bandTransform.release();
+        }
+    }
+
+    /**
+     * Warp a block of the destination from the source rectangle it maps to, or its halves if that rectangle is over budget
+     */
+    private static void warpBlock(double[] h, Mat destination, int left, int top, int right, int bottom, int sourceWidth, int sourceHeight,
+                                  long bandBytes, BandSource source, Mat band, Mat bandTransform) {
+        int[] rect = sourceRect(h, left, top, right, bottom, sourceWidth, sourceHeight);
+        long bytes = (long) Math.max(0, rect[2] - rect[0]) * Math.max(0, rect[3] - rect[1]) * 4;
+
+        if (bytes > bandBytes && Math.max(right - left, bottom - top) > MIN_BAND_ROWS) {
+            if (right - left > bottom - top) {
+                int middle = (left + right) / 2;
+                warpBlock(h, destination, left, top, middle, bottom, sourceWidth, sourceHeight, bandBytes, source, band, bandTransform);
+                warpBlock(h, destination, middle, top, right, bottom, sourceWidth, sourceHeight, bandBytes, source, band, bandTransform);
+            } else {
+                int middle = (top + bottom) / 2;
+                warpBlock(h, destination, left, top, right, middle, sourceWidth, sourceHeight, bandBytes, source, band, bandTransform);
+                warpBlock(h, destination, left, middle, right, bottom, sourceWidth, sourceHeight, bandBytes, source, band, bandTransform);
+            }
+
+            return;
+        }
+
+        Mat output = destination.submat(top, bottom, left, right);
+
+        if (bytes == 0) {
+            // block outside of the source
+            output.setTo(new Scalar(0));
+        } else {
+            source.read(rect[0], rect[1], rect[2], rect[3], band);
+
+            // block pixel to source rectangle pixel: translate to the block origin, map, translate to the rectangle origin
+            double x = h[2] + left * h[0] + top * h[1];
+            double y = h[5] + left * h[3] + top * h[4];
+            double w = h[8] + left * h[6] + top * h[7];
+            bandTransform.put(0, 0,
+                h[0] - rect[0] * h[6], h[1] - rect[0] * h[7], x - rect[0] * w,
+                h[3] - rect[1] * h[6], h[4] - rect[1] * h[7], y - rect[1] * w,
+                h[6], h[7], w
+            );
+
+            Imgproc.warpPerspective(band, output, bandTransform, output.size(), Imgproc.INTER_LINEAR | Imgproc.WARP_INVERSE_MAP, Core.BORDER_CONSTANT, new Scalar(0));
+        }
+
+        output.release();
+    }
+
+    /**
+     * Source rectangle (left, top, right, bottom) covering a block of the destination, clamped to the source
+     */
+    private static int[] sourceRect(double[] h, int left, int top, int right, int bottom, int sourceWidth, int sourceHeight) {
+        // a perspective maps the block to a convex quad, its corners bound it
+        double[][] corners = {{left, top}, {right - 1, top}, {right - 1, bottom - 1}, {left, bottom - 1}};
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+
+        for (double[] corner : corners) {
+            double w = h[6] * corner[0] + h[7] * corner[1] + h[8];
+            double x = (h[0] * corner[0] + h[1] * corner[1] + h[2]) / w;
+            double y = (h[3] * corner[0] + h[4] * corner[1] + h[5]) / w;
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        return new int[] {
+            (int) Math.max(0, Math.floor(minX) - BAND_MARGIN),
+            (int) Math.max(0, Math.floor(minY) - BAND_MARGIN),
+            (int) Math.min(sourceWidth, Math.ceil(maxX) + BAND_MARGIN),
+            (int) Math.min(sourceHeight, Math.ceil(maxY) + BAND_MARGIN)
+        };
+    }
+
+}
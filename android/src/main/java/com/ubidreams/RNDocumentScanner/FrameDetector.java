@@ -0,0 +1,254 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.os.SystemClock;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Edges detection on live camera frames, working on the luminance (Y) plane only.
+ * Frames are processed on the calling thread (camera callback or image analyzer),
+ * frames arriving while another one is processed, or faster than the configured rate, are skipped.
+ * Each frame is scored (sharpness, exposure, stability), with the quality gate on blurry or badly exposed frames
+ * are not detected, the last document is kept.
+ */
+public class FrameDetector {
+
+    public interface Listener {
+        /**
+         * @param points document corners normalized between 0 and 1 in the upright frame, null if no document is found
+         * @param width upright frame width
+         * @param height upright frame height
+         * @param quality frame quality, to auto-capture acceptable frames only
+         */
+        void onFrameDetected(Point[] points, int width, int height, FrameQuality.Score quality);
+    }
+
+    public static final int DEFAULT_MAX_FPS = 15;
+    public static final int DEFAULT_PROCESSING_SIZE = 480;
+
+    private final Listener listener;
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private volatile boolean running = false;
+    private volatile long minFrameInterval;
+    private volatile int processingSize;
+    private volatile boolean qualityGate;
+    private long lastFrameTime = 0;
+
+    // buffers reused from one frame to the next
+    private byte[] luminance = new byte[0];
+    private Mat luminanceMat = new Mat();
+    private Mat processingMat = new Mat();
+    private final QuadTracker tracker = new QuadTracker();
+    private final FrameQuality quality = new FrameQuality();
+    private volatile boolean trackerReset = false;
+    // last document found, in processing frame coordinates
+    private Point[] lastPoints = null;
+
+    public FrameDetector(Listener listener) {
+        this.listener = listener;
+        this.configure(DEFAULT_MAX_FPS, DEFAULT_PROCESSING_SIZE, false);
+    }
+
+    public void configure(int maxFps, int processingSize, boolean qualityGate) {
+        this.minFrameInterval = maxFps > 0 ? 1000 / maxFps : 0;
+        this.processingSize = processingSize > 0 ? processingSize : DEFAULT_PROCESSING_SIZE;
+        this.qualityGate = qualityGate;
+    }
+
+    public void start() {
+        // reset on the frames thread, the tracker and quality history are not thread-safe
+        this.trackerReset = true;
+        this.running = true;
+    }
+
+    public void stop() {
+        this.running = false;
+
+        // release buffers, unless a frame is being processed (they will be reallocated on next start anyway)
+        if (this.busy.compareAndSet(false, true)) {
+            this.luminanceMat.release();
+            this.processingMat.release();
+            this.tracker.release();
+            this.quality.release();
+            this.luminance = new byte[0];
+            this.busy.set(false);
+        }
+    }
+
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Offer a NV21 frame (Camera.PreviewCallback), the Y plane is its first width * height bytes
+     * @return true if the frame has been processed, false if it has been skipped
+     */
+    public boolean offerFrame(byte[] nv21, int width, int height, int rotation) {
+        if (!this.acquire()) {
+            return false;
+        }
+
+        try {
+            this.luminanceMat.create(height, width, CvType.CV_8UC1);
+            this.luminanceMat.put(0, 0, nv21, 0, width * height);
+
+            this.process(width, height, rotation);
+        } finally {
+            this.busy.set(false);
+        }
+
+        return true;
+    }
+
+    /**
+     * Offer the Y plane of a YUV_420_888 frame (android.media.Image or CameraX ImageProxy planes[0])
+     * @return true if the frame has been processed, false if it has been skipped
+     */
+    public boolean offerFrame(ByteBuffer yPlane, int rowStride, int width, int height, int rotation) {
+        if (!this.acquire()) {
+            return false;
+        }
+
+        try {
+            int size = width * height;
+
+            if (this.luminance.length != size) {
+                this.luminance = new byte[size];
+            }
+
+            // copy rows without their padding
+            ByteBuffer buffer = yPlane.duplicate();
+
+            if (rowStride == width) {
+                buffer.position(0);
+                buffer.get(this.luminance, 0, size);
+            } else {
+                for (int row = 0; row < height; row++) {
+                    buffer.position(row * rowStride);
+                    buffer.get(this.luminance, row * width, width);
+                }
+            }
+
+            this.luminanceMat.create(height, width, CvType.CV_8UC1);
+            this.luminanceMat.put(0, 0, this.luminance);
+
+            this.process(width, height, rotation);
+        } finally {
+            this.busy.set(false);
+        }
+
+        return true;
+    }
+
+    private boolean acquire() {
+        if (!this.running) {
+            // frames thread workspace, freed by the first frame offered once stopped
+            DetectorWorkspace.release();
+            return false;
+        }
+
+        // limit detection rate
+        long now = SystemClock.elapsedRealtime();
+
+        if (now - this.lastFrameTime < this.minFrameInterval) {
+            return false;
+        }
+
+        // skip frame while previous one is in flight
+        if (!this.busy.compareAndSet(false, true)) {
+            return false;
+        }
+
+        this.lastFrameTime = now;
+
+        return true;
+    }
+
+    private void process(int width, int height, int rotation) {
+        // downscale luminance to processing size
+        double scale = Math.min(1, (double) this.processingSize / Math.max(width, height));
+
+        if (scale < 1) {
+            Imgproc.resize(this.luminanceMat, this.processingMat, new Size(Math.round(width * scale), Math.round(height * scale)), 0, 0, Imgproc.INTER_AREA);
+        } else {
+            this.luminanceMat.copyTo(this.processingMat);
+        }
+
+        int processingWidth = this.processingMat.cols();
+        int processingHeight = this.processingMat.rows();
+
+        if (this.trackerReset) {
+            this.trackerReset = false;
+            this.tracker.reset();
+            this.quality.reset();
+            this.lastPoints = null;
+        }
+
+        // measured first, tracking modifies the frame
+        FrameQuality.Score score = this.quality.measure(this.processingMat);
+        Point[] points;
+
+        if (this.qualityGate && !score.isSharpAndExposed()) {
+            // not worth detecting, keep showing the last document
+            points = this.lastPoints;
+            score = new FrameQuality.Score(score.sharpness, score.exposure, 0);
+        } else {
+            // go opencv ! (around the document of previous frames when there is one)
+            points = this.tracker.track(this.processingMat);
+            score = this.quality.withStability(score, points, processingWidth, processingHeight);
+            this.lastPoints = points;
+        }
+
+        // get upright frame size
+        boolean swap = rotation == 90 || rotation == 270;
+        int uprightWidth = swap ? height : width;
+        int uprightHeight = swap ? width : height;
+
+        if (points != null) {
+            Point[] uprightPoints = new Point[4];
+
+            for (int i = 0; i < 4; i++) {
+                uprightPoints[i] = rotatePoint(points[i].x / processingWidth, points[i].y / processingHeight, rotation);
+
+                // sort in upright pixels, corners order depends on frame ratio
+                uprightPoints[i].x *= uprightWidth;
+                uprightPoints[i].y *= uprightHeight;
+            }
+
+            points = DocumentDetector.sortPoints(uprightPoints);
+
+            for (Point point : points) {
+                point.x /= uprightWidth;
+                point.y /= uprightHeight;
+            }
+        }
+
+        if (this.running) {
+            this.listener.onFrameDetected(points, uprightWidth, uprightHeight, score);
+        }
+    }
+
+    /**
+     * Rotate a normalized point clockwise by the frame rotation (0, 90, 180 or 270)
+     */
+    private static Point rotatePoint(double x, double y, int rotation) {
+        switch (rotation) {
+            case 90:
+                return new Point(1 - y, x);
+            case 180:
+                return new Point(1 - x, 1 - y);
+            case 270:
+                return new Point(y, 1 - x);
+            default:
+                return new Point(x, y);
+        }
+    }
+
+}
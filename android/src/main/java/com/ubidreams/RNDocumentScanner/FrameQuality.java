@@ -0,0 +1,181 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayDeque;
+
+/**
+ * Cheap quality measure of a frame (no Android dependency), to only capture and process frames worth keeping:
+ * focus (variance of the Laplacian), exposure (histogram) and stability of the document quad over the last frames.
+ * Measures are done on a small grayscale image, around a millisecond per frame.
+ */
+public class FrameQuality {
+
+    public static class Score {
+        // between 0 and 1
+        public final double sharpness;
+        public final double exposure;
+        public final double stability;
+        // product of the above
+        public final double score;
+        public final boolean acceptable;
+
+        public Score(double sharpness, double exposure, double stability) {
+            this.sharpness = sharpness;
+            this.exposure = exposure;
+            this.stability = stability;
+            this.score = sharpness * exposure * stability;
+            this.acceptable = this.isSharpAndExposed() && stability >= MIN_STABILITY;
+        }
+
+        /**
+         * Whether the frame is worth detecting the document on, whatever its stability
+         */
+        public boolean isSharpAndExposed() {
+            return this.sharpness >= MIN_SHARPNESS && this.exposure >= MIN_EXPOSURE;
+        }
+    }
+
+    // long side above which frames are halved before being measured
+    public static final int ANALYSIS_SIZE = 320;
+    // variance of the Laplacian over squared mean luminance, of a sharp document at the analysis size
+    public static final double SHARP_RATIO = 0.06;
+    // pixels darker or brighter than this are clipped
+    public static final int CLIPPED_DARK = 10;
+    public static final int CLIPPED_BRIGHT = 245;
+    // mean luminance outside of this range lowers exposure
+    public static final int MEAN_LOW = 70;
+    public static final int MEAN_HIGH = 190;
+    // frames the quad must be held still, and largest corner move between them (relative to the frame diagonal)
+    public static final int STABILITY_FRAMES = 5;
+    public static final double STABILITY_TOLERANCE = 0.02;
+    public static final double MIN_SHARPNESS = 0.5;
+    public static final double MIN_EXPOSURE = 0.5;
+    public static final double MIN_STABILITY = 0.5;
+
+    private final ArrayDeque<Point[]> quads = new ArrayDeque<>();
+    private final Mat small = new Mat();
+    private final Mat laplacian = new Mat();
+    private final MatOfDouble laplacianMean = new MatOfDouble();
+    private final MatOfDouble laplacianDeviation = new MatOfDouble();
+
+    public void reset() {
+        this.quads.clear();
+    }
+
+    public void release() {
+        this.reset();
+        this.small.release();
+        this.laplacian.release();
+        this.laplacianMean.release();
+        this.laplacianDeviation.release();
+    }
+
+    /**
+     * Sharpness and exposure of a grayscale image (left untouched), a still image is considered stable
+     */
+    public Score measure(Mat gray) {
+        // halved as needed (integer ratios keep INTER_AREA on its fast path)
+        int scale = 1;
+
+        while (Math.max(gray.cols(), gray.rows()) / scale > ANALYSIS_SIZE) {
+            scale *= 2;
+        }
+
+        if (scale > 1) {
+            Imgproc.resize(gray, this.small, new Size(gray.cols() / scale, gray.rows() / scale), 0, 0, Imgproc.INTER_AREA);
+        } else {
+            gray.copyTo(this.small);
+        }
+
+        return new Score(this.measureSharpness(), this.measureExposure(), 1);
+    }
+
+    /**
+     * Frame score with the stability of its document quad (frame coordinates, null if none) over the last frames
+     */
+    public Score withStability(Score score, Point[] quad, int width, int height) {
+        return new Score(score.sharpness, score.exposure, this.measureStability(quad, width, height));
+    }
+
+    private double measureSharpness() {
+        Imgproc.Laplacian(this.small, this.laplacian, CvType.CV_16S);
+
+        Core.meanStdDev(this.laplacian, this.laplacianMean, this.laplacianDeviation);
+        double laplacianVariance = Math.pow(this.laplacianDeviation.get(0, 0)[0], 2);
+
+        // relative to the squared mean luminance, so that under or over exposure doesn't change it
+        double luminance = Math.max(1, Core.mean(this.small).val[0]);
+
+        return Math.min(1, laplacianVariance / (luminance * luminance) / SHARP_RATIO);
+    }
+
+    private double measureExposure() {
+        // histogram computed in the workspace, nothing native allocated per frame
+        float[] counts = DetectorWorkspace.get().computeHistogram(this.small);
+
+        double total = this.small.total();
+        double clipped = 0;
+        double sum = 0;
+
+        for (int i = 0; i < 256; i++) {
+            sum += i * counts[i];
+
+            if (i <= CLIPPED_DARK || i >= CLIPPED_BRIGHT) {
+                clipped += counts[i];
+            }
+        }
+
+        double mean = sum / total;
+        double meanScore = 1;
+
+        if (mean < MEAN_LOW) {
+            meanScore = mean / MEAN_LOW;
+        } else if (mean > MEAN_HIGH) {
+            meanScore = (255 - mean) / (255 - MEAN_HIGH);
+        }
+
+        // a third of clipped pixels is an unusable frame
+        return Math.max(0, meanScore * (1 - clipped / total * 3));
+    }
+
+    private double measureStability(Point[] quad, int width, int height) {
+        if (quad == null) {
+            this.quads.clear();
+            return 0;
+        }
+
+        double diagonal = Math.hypot(width, height);
+        Point[] normalized = new Point[4];
+
+        for (int i = 0; i < 4; i++) {
+            normalized[i] = new Point(quad[i].x / diagonal, quad[i].y / diagonal);
+        }
+
+        this.quads.addLast(normalized);
+
+        if (this.quads.size() > STABILITY_FRAMES) {
+            this.quads.removeFirst();
+        }
+
+        // largest corner move from any recent frame to this one, not stable until enough frames are seen
+        double maxMove = 0;
+
+        for (Point[] previous : this.quads) {
+            for (int i = 0; i < 4; i++) {
+                maxMove = Math.max(maxMove, Math.hypot(previous[i].x - normalized[i].x, previous[i].y - normalized[i].y));
+            }
+        }
+
+        double stability = Math.max(0, 1 - maxMove / STABILITY_TOLERANCE);
+
+        return this.quads.size() < STABILITY_FRAMES ? stability * this.quads.size() / STABILITY_FRAMES : stability;
+    }
+
+}
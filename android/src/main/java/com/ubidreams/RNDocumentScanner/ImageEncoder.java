@@ -0,0 +1,111 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.OutputStream;
+
+/**
+ * Output file format, quality and color mode of cropped images
+ */
+public class ImageEncoder {
+
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_WEBP = "webp";
+    public static final String FORMAT_WEBP_LOSSLESS = "webp-lossless";
+
+    public static final String COLOR_MODE_COLOR = "color";
+    public static final String COLOR_MODE_GRAYSCALE = "grayscale";
+    public static final String COLOR_MODE_BILEVEL = "bilevel";
+
+    private static final int DEFAULT_QUALITY = 90;
+
+    private final String format;
+    private final int quality;
+    private final String colorMode;
+
+    public ImageEncoder(String format, int quality, String colorMode) {
+        this.format = format;
+        this.quality = Math.max(0, Math.min(100, quality));
+        this.colorMode = colorMode;
+    }
+
+    /**
+     * Read encoder from crop options, defaults to PNG in color (previous behavior)
+     */
+    public static ImageEncoder fromOptions(ReadableMap options) {
+        String format = options.hasKey("format") && !options.isNull("format") ? options.getString("format") : FORMAT_PNG;
+        int quality = options.hasKey("quality") && !options.isNull("quality") ? options.getInt("quality") : DEFAULT_QUALITY;
+        String colorMode = options.hasKey("colorMode") && !options.isNull("colorMode") ? options.getString("colorMode") : COLOR_MODE_COLOR;
+
+        if (!format.equals(FORMAT_JPEG) && !format.equals(FORMAT_WEBP) && !format.equals(FORMAT_WEBP_LOSSLESS)) {
+            format = FORMAT_PNG;
+        }
+
+        return new ImageEncoder(format, quality, colorMode);
+    }
+
+    /**
+     * Same quality and color mode in JPEG (PDF pages)
+     */
+    public ImageEncoder asJpeg() {
+        return new ImageEncoder(FORMAT_JPEG, this.quality, this.colorMode);
+    }
+
+    public String getExtension() {
+        switch (this.format) {
+            case FORMAT_JPEG:
+                return "jpg";
+            case FORMAT_WEBP:
+            case FORMAT_WEBP_LOSSLESS:
+                return "webp";
+            default:
+                return "png";
+        }
+    }
+
+    /**
+     * Convert RGBA image to the color mode, in place
+     */
+    public void applyColorMode(Mat mat) {
+        if (!this.colorMode.equals(COLOR_MODE_GRAYSCALE) && !this.colorMode.equals(COLOR_MODE_BILEVEL)) {
+            return;
+        }
+
+        Imgproc.cvtColor(mat, mat, Imgproc.COLOR_RGBA2GRAY);
+
+        if (this.colorMode.equals(COLOR_MODE_BILEVEL)) {
+            // same binarization as the "bw" enhancement
+            DocumentEnhancer.binarize(mat);
+        }
+
+        Imgproc.cvtColor(mat, mat, Imgproc.COLOR_GRAY2RGBA);
+    }
+
+    public boolean encode(Bitmap bitmap, OutputStream stream) {
+        switch (this.format) {
+            case FORMAT_JPEG:
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, this.quality, stream);
+            case FORMAT_WEBP:
+                // from Android Q, WEBP at quality 100 is lossless, keep it lossy
+                return bitmap.compress(Bitmap.CompressFormat.WEBP, Math.min(this.quality, 99), stream);
+            case FORMAT_WEBP_LOSSLESS:
+                if (Build.VERSION.SDK_INT >= 30) {
+                    // WEBP_LOSSLESS is not known by the compile SDK
+                    return bitmap.compress(Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS"), this.quality, stream);
+                }
+
+                // at quality 100, WEBP is lossless on Android Q and nearly lossless before
+                return bitmap.compress(Bitmap.CompressFormat.WEBP, 100, stream);
+            default:
+                return bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Mat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cropped images kept in native memory by handle id, so that the next steps (encoding, resizing, export...)
+ * don't read and decode a file again. Images are kept in least recently used order within a byte budget:
+ * past it the oldest ones are released, and their handles expire.
+ * Images are reference counted, an image in use by a job is only released once the job is done with it.
+ */
+public class ImageHandles {
+
+    public static final long DEFAULT_MAX_BYTES = 128 * 1024 * 1024;
+
+    /**
+     * Image of a handle, to be given back with release once used
+     */
+    public static class Image {
+        public final Mat mat;
+        private final long bytes;
+        private int references = 1;
+
+        Image(Mat mat) {
+            this.mat = mat;
+            this.bytes = mat.total() * mat.elemSize();
+        }
+    }
+
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    public synchronized void configure(long maxBytes) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+
+        this.trim(this.maxBytes, null);
+    }
+
+    /**
+     * Keep a RGBA image, owned by the registry from now on
+     * @return handle id
+     */
+    public synchronized String add(Mat mat) {
+        String id = UUID.randomUUID().toString();
+        Image image = new Image(mat);
+
+        this.images.put(id, image);
+        this.totalBytes += image.bytes;
+
+        // the image just added is kept even if it exceeds the budget alone
+        this.trim(this.maxBytes, id);
+
+        return id;
+    }
+
+    /**
+     * Image of a handle, or null if the handle is unknown or has expired.
+     * It must be given back with release, it is not freed in between.
+     */
+    public synchronized Image acquire(String id) {
+        Image image = id != null ? this.images.get(id) : null;
+
+        if (image != null) {
+            image.references++;
+        }
+
+        return image;
+    }
+
+    public synchronized void release(Image image) {
+        image.references--;
+
+        if (image.references == 0) {
+            image.mat.release();
+        }
+    }
+
+    /**
+     * Forget a handle, its image is freed once no job uses it
+     */
+    public synchronized void remove(String id) {
+        Image image = this.images.remove(id);
+
+        if (image != null) {
+            this.drop(image);
+        }
+    }
+
+    public synchronized void clear() {
+        this.trim(0, null);
+    }
+
+    public synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    public synchronized int size() {
+        return this.images.size();
+    }
+
+    /**
+     * Forget least recently used handles until images fit in the given number of bytes, except the given handle
+     */
+    private void trim(long bytes, String keptId) {
+        Iterator<Map.Entry<String, Image>> iterator = this.images.entrySet().iterator();
+
+        while (this.totalBytes > bytes && iterator.hasNext()) {
+            Map.Entry<String, Image> entry = iterator.next();
+
+            if (entry.getKey().equals(keptId)) {
+                continue;
+            }
+
+            iterator.remove();
+            this.drop(entry.getValue());
+        }
+    }
+
+    private void drop(Image image) {
+        this.totalBytes -= image.bytes;
+        this.release(image);
+    }
+
+}
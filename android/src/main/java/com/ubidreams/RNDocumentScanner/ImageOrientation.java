@@ -0,0 +1,158 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * EXIF orientation of an image, as a mapping between stored pixels (as decoded) and upright pixels (as displayed).
+ * Images are never rotated at full resolution: coordinates are mapped instead, only small images are physically oriented.
+ * Values follow the EXIF orientation tag (1 normal, 3 rotate 180, 6 rotate 90 clockwise, 8 rotate 270 clockwise,
+ * 2, 4, 5 and 7 for their mirrored variants).
+ */
+public class ImageOrientation {
+
+    public static final int NORMAL = 1;
+    public static final int FLIP_HORIZONTAL = 2;
+    public static final int ROTATE_180 = 3;
+    public static final int FLIP_VERTICAL = 4;
+    public static final int TRANSPOSE = 5;
+    public static final int ROTATE_90 = 6;
+    public static final int TRANSVERSE = 7;
+    public static final int ROTATE_270 = 8;
+
+    private final int orientation;
+    private final int storedWidth;
+    private final int storedHeight;
+
+    public ImageOrientation(int orientation, int storedWidth, int storedHeight) {
+        this.orientation = orientation >= NORMAL && orientation <= ROTATE_270 ? orientation : NORMAL;
+        this.storedWidth = storedWidth;
+        this.storedHeight = storedHeight;
+    }
+
+    public boolean isNormal() {
+        return this.orientation == NORMAL;
+    }
+
+    /**
+     * Whether width and height are swapped between stored and upright images
+     */
+    public boolean swapsAxes() {
+        return this.orientation >= TRANSPOSE;
+    }
+
+    public int getWidth() {
+        return this.swapsAxes() ? this.storedHeight : this.storedWidth;
+    }
+
+    public int getHeight() {
+        return this.swapsAxes() ? this.storedWidth : this.storedHeight;
+    }
+
+    /**
+     * Upright pixel coordinates to stored pixel coordinates (whole image)
+     */
+    public Point toStored(Point point) {
+        double x = point.x;
+        double y = point.y;
+        double maxX = this.storedWidth - 1;
+        double maxY = this.storedHeight - 1;
+
+        switch (this.orientation) {
+            case FLIP_HORIZONTAL:
+                return new Point(maxX - x, y);
+            case ROTATE_180:
+                return new Point(maxX - x, maxY - y);
+            case FLIP_VERTICAL:
+                return new Point(x, maxY - y);
+            case TRANSPOSE:
+                return new Point(y, x);
+            case ROTATE_90:
+                return new Point(y, maxY - x);
+            case TRANSVERSE:
+                return new Point(maxX - y, maxY - x);
+            case ROTATE_270:
+                return new Point(maxX - y, x);
+            default:
+                return new Point(x, y);
+        }
+    }
+
+    /**
+     * Stored pixel coordinates to upright pixel coordinates (whole image)
+     */
+    public Point toUpright(Point point) {
+        double x = point.x;
+        double y = point.y;
+        double maxX = this.storedWidth - 1;
+        double maxY = this.storedHeight - 1;
+
+        switch (this.orientation) {
+            case FLIP_HORIZONTAL:
+                return new Point(maxX - x, y);
+            case ROTATE_180:
+                return new Point(maxX - x, maxY - y);
+            case FLIP_VERTICAL:
+                return new Point(x, maxY - y);
+            case TRANSPOSE:
+                return new Point(y, x);
+            case ROTATE_90:
+                return new Point(maxY - y, x);
+            case TRANSVERSE:
+                return new Point(maxY - y, maxX - x);
+            case ROTATE_270:
+                return new Point(y, maxX - x);
+            default:
+                return new Point(x, y);
+        }
+    }
+
+    /**
+     * Stored rectangle (left, top, right, bottom, right and bottom excluded) of an upright rectangle
+     */
+    public int[] toStored(int left, int top, int right, int bottom) {
+        Point a = this.toStored(new Point(left, top));
+        Point b = this.toStored(new Point(right - 1, bottom - 1));
+
+        return new int[] {
+            (int) Math.min(a.x, b.x),
+            (int) Math.min(a.y, b.y),
+            (int) Math.max(a.x, b.x) + 1,
+            (int) Math.max(a.y, b.y) + 1
+        };
+    }
+
+    /**
+     * Orient a stored image (or a region of it) upright, source and destination must be different Mats
+     */
+    public void apply(Mat source, Mat destination) {
+        switch (this.orientation) {
+            case FLIP_HORIZONTAL:
+                Core.flip(source, destination, 1);
+                break;
+            case ROTATE_180:
+                Core.rotate(source, destination, Core.ROTATE_180);
+                break;
+            case FLIP_VERTICAL:
+                Core.flip(source, destination, 0);
+                break;
+            case TRANSPOSE:
+                Core.transpose(source, destination);
+                break;
+            case ROTATE_90:
+                Core.rotate(source, destination, Core.ROTATE_90_CLOCKWISE);
+                break;
+            case TRANSVERSE:
+                Core.transpose(source, destination);
+                Core.flip(destination, destination, -1);
+                break;
+            case ROTATE_270:
+                Core.rotate(source, destination, Core.ROTATE_90_COUNTERCLOCKWISE);
+                break;
+            default:
+                source.copyTo(destination);
+        }
+    }
+
+}
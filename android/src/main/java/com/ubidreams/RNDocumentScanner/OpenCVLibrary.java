@@ -0,0 +1,92 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * OpenCV native library, loaded on first use instead of when React Native creates the module,
+ * so that app launches without scan don't pay for it. It can be loaded ahead in the background with prepare.
+ * Nothing creating a Mat may run before load, including field initializers.
+ */
+public class OpenCVLibrary {
+
+    private static final String LIBRARY_NAME = "opencv_java3";
+    private static final String TAG = "RNDocumentScanner";
+    // height of the warm-up image, a page on a darker background
+    private static final int WARM_UP_SIZE = 160;
+
+    // milliseconds spent loading the library, -1 until loaded
+    private static volatile long loadTime = -1;
+
+    /**
+     * Load the library if not done yet, blocks while another thread loads it
+     * @throws IllegalStateException if the library can't be loaded
+     */
+    public static void load() {
+        if (loadTime >= 0) {
+            return;
+        }
+
+        synchronized (OpenCVLibrary.class) {
+            if (loadTime >= 0) {
+                return;
+            }
+
+            long start = System.nanoTime();
+
+            try {
+                System.loadLibrary(LIBRARY_NAME);
+            } catch (UnsatisfiedLinkError e) {
+                Log.d(TAG, "Unable to load " + LIBRARY_NAME);
+                e.printStackTrace();
+                throw new IllegalStateException("OpenCV library can't be loaded", e);
+            }
+
+            loadTime = (System.nanoTime() - start) / 1000000;
+            Log.d(TAG, "Loaded " + LIBRARY_NAME + " in " + loadTime + " ms");
+        }
+    }
+
+    /**
+     * Load the library, then detect and warp a tiny synthetic page on the calling thread,
+     * so that detection classes, OpenCV internal buffers and the JIT are ready for the first scan
+     * @return milliseconds spent warming up, library loading excluded
+     */
+    public static long warmUp() {
+        load();
+
+        long start = System.nanoTime();
+        Mat gray = new Mat(WARM_UP_SIZE, WARM_UP_SIZE * 3 / 4, CvType.CV_8UC1, new Scalar(60));
+
+        try {
+            Imgproc.rectangle(gray, new Point(20, 25), new Point(WARM_UP_SIZE * 3 / 4 - 20, WARM_UP_SIZE - 25), new Scalar(220), -1);
+
+            DetectionResult detection = DetectionCascade.detect(gray, null);
+
+            if (detection != null) {
+                DocumentWarper.warp(gray, detection.points).release();
+            }
+        } finally {
+            gray.release();
+        }
+
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    public static boolean isLoaded() {
+        return loadTime >= 0;
+    }
+
+    /**
+     * Milliseconds spent loading the library, -1 if not loaded
+     */
+    public static long getLoadTime() {
+        return loadTime;
+    }
+
+}
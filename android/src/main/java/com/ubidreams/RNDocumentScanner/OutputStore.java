@@ -0,0 +1,218 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Files written by the scanner (cropped images, thumbnails...), in their own cache sub directory.
+ * Files are kept in least recently used order (written, or touched when read again): the least recently used ones are
+ * deleted past the size budget, files written before the maximum age are deleted when the store is cleaned up
+ * (in the background at startup). Files left by previous runs are indexed in the order they were written.
+ * Apps copy the files they want to keep, and release the others as soon as they are done with them.
+ */
+public class OutputStore {
+
+    public static final long DEFAULT_MAX_BYTES = 100 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String DIRECTORY_NAME = "RNDocumentScanner";
+
+    private final String tag = "RNDocumentScanner";
+    private final File directory;
+    // access ordered, least recently used first
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    public OutputStore(File cacheDirectory) {
+        this.directory = new File(cacheDirectory, DIRECTORY_NAME);
+    }
+
+    public synchronized void configure(long maxBytes, long maxAge) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        this.maxAge = maxAge > 0 ? maxAge : DEFAULT_MAX_AGE;
+
+        this.trim(this.maxBytes, null);
+    }
+
+    /**
+     * New file in the store directory, to be added once written
+     */
+    public File newFile(String extension) {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            Log.d(tag, "Unable to create output directory " + this.directory);
+        }
+
+        return new File(this.directory, UUID.randomUUID().toString() + "." + extension);
+    }
+
+    /**
+     * Track a written file, older files are deleted if the store exceeds its size budget
+     */
+    public synchronized void add(File file) {
+        String path = file.getAbsolutePath();
+        Long previousSize = this.files.remove(path);
+
+        if (previousSize != null) {
+            this.totalBytes -= previousSize;
+        }
+
+        long size = file.length();
+        this.files.put(path, size);
+        this.totalBytes += size;
+
+        this.trim(this.maxBytes, path);
+    }
+
+    /**
+     * Mark a file of the store (path or file:// uri) as used, so that it is deleted after the others.
+     * Files outside of the store are ignored.
+     */
+    public synchronized void touch(String path) {
+        String storePath = this.getStorePath(path);
+
+        if (storePath != null) {
+            this.files.get(storePath);
+        }
+    }
+
+    /**
+     * Delete a file of the store (path or file:// uri), files outside of the store are left untouched
+     * @return true if the file has been deleted
+     */
+    public synchronized boolean release(String path) {
+        String storePath = this.getStorePath(path);
+
+        return storePath != null && this.delete(storePath);
+    }
+
+    public synchronized long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    public synchronized int getFileCount() {
+        return this.files.size();
+    }
+
+    /**
+     * Index files left by previous runs, then delete expired files and keep the others within the size budget.
+     * Lists the directory, to be run off the main thread.
+     */
+    public void cleanUp() {
+        File[] existingFiles = this.directory.listFiles();
+
+        if (existingFiles == null) {
+            return;
+        }
+
+        // modification times read once, files may change while they are sorted
+        final Map<File, Long> modified = new HashMap<>();
+
+        for (File file : existingFiles) {
+            modified.put(file, file.lastModified());
+        }
+
+        // oldest first
+        Arrays.sort(existingFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+
+        synchronized (this) {
+            long expiration = System.currentTimeMillis() - this.maxAge;
+            LinkedHashMap<String, Long> indexedFiles = new LinkedHashMap<>();
+            long indexedBytes = 0;
+
+            for (File file : existingFiles) {
+                if (!file.isFile()) {
+                    continue;
+                }
+
+                if (modified.get(file) < expiration) {
+                    if (!file.delete()) {
+                        Log.d(tag, "Unable to delete expired file " + file);
+                    }
+
+                    continue;
+                }
+
+                // files added since the store was created are more recent, keep them last
+                String path = file.getAbsolutePath();
+
+                if (!this.files.containsKey(path)) {
+                    long size = file.length();
+                    indexedFiles.put(path, size);
+                    indexedBytes += size;
+                }
+            }
+
+            indexedFiles.putAll(this.files);
+            this.files.clear();
+            this.files.putAll(indexedFiles);
+            this.totalBytes += indexedBytes;
+
+            this.trim(this.maxBytes, null);
+        }
+    }
+
+    /**
+     * Delete least recently used files until the store fits in the given number of bytes, except the given file
+     */
+    private void trim(long bytes, String keptPath) {
+        Iterator<Map.Entry<String, Long>> iterator = this.files.entrySet().iterator();
+
+        while (this.totalBytes > bytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            if (entry.getKey().equals(keptPath)) {
+                continue;
+            }
+
+            if (!new File(entry.getKey()).delete()) {
+                Log.d(tag, "Unable to delete file " + entry.getKey());
+            }
+
+            this.totalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Absolute path of a file of the store (path or file:// uri), null for files outside of the store
+     */
+    private String getStorePath(String path) {
+        if (path == null) {
+            return null;
+        }
+
+        File file = new File(path.startsWith("file://") ? path.substring("file://".length()) : path);
+
+        if (!this.directory.equals(file.getAbsoluteFile().getParentFile())) {
+            return null;
+        }
+
+        return file.getAbsolutePath();
+    }
+
+    private boolean delete(String path) {
+        Long size = this.files.remove(path);
+
+        if (size != null) {
+            this.totalBytes -= size;
+        }
+
+        return new File(path).delete();
+    }
+
+}
@@ -0,0 +1,302 @@
+package com.ubidreams.RNDocumentScanner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Multi-page PDF file of JPEG images (no Android dependency), written as pages are added.
+ * Each page is a JPEG image stream (DCTDecode), encoded in memory outside of the writer lock so that pages added
+ * in parallel encode in parallel, then appended to the file. Memory doesn't grow with the page count:
+ * only object offsets are kept until the page tree, cross-reference table and trailer are written on close.
+ * Pages slots are reserved in call order, so that pages rendered in parallel keep that order in the document.
+ * Closing waits for the pages still being added, pages given up with skipPage are left out and reported.
+ */
+public class PdfWriter {
+
+    public interface ImageData {
+        /**
+         * Write the JPEG file of the page to the stream
+         */
+        void writeTo(OutputStream stream) throws IOException;
+    }
+
+    public static final double DEFAULT_DPI = 300;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // objects written on close, their ids are reserved as pages refer to them
+    private static final int CATALOG_ID = 1;
+    private static final int PAGES_ID = 2;
+    // page slot states, written slots hold their page object id
+    private static final int PENDING = 0;
+    private static final int SKIPPED = -1;
+
+    private final File file;
+    private final double dpi;
+    private final CountingOutputStream out;
+    // file offset of each object, by id - 1
+    private final List<Long> offsets = new ArrayList<>();
+    // page object id of each reserved slot, PENDING until written or SKIPPED
+    private final List<Integer> pages = new ArrayList<>();
+    private boolean closed = false;
+    private boolean broken = false;
+
+    public PdfWriter(File file, double dpi) throws IOException {
+        this.file = file;
+        this.dpi = dpi > 0 ? dpi : DEFAULT_DPI;
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+
+        // binary comment so that transfer tools don't take the file for text
+        this.write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        this.offsets.add(0L);
+        this.offsets.add(0L);
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Reserved pages given up, left out of the document
+     */
+    public synchronized List<Integer> getSkippedPages() {
+        List<Integer> skipped = new ArrayList<>();
+
+        for (int slot = 0; slot < this.pages.size(); slot++) {
+            if (this.pages.get(slot) == SKIPPED) skipped.add(slot);
+        }
+
+        return skipped;
+    }
+
+    public synchronized int getPageCount() {
+        int count = 0;
+
+        for (int page : this.pages) {
+            if (page > 0) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Reserve the next page of the document, to be added once rendered
+     */
+    public synchronized int reservePage() throws IOException {
+        this.checkWritable();
+
+        this.pages.add(PENDING);
+
+        return this.pages.size() - 1;
+    }
+
+    /**
+     * Give up a reserved page that won't be added (failed or cancelled), so that closing doesn't wait for it
+     */
+    public synchronized void skipPage(int slot) {
+        if (this.pages.get(slot) == PENDING) {
+            this.pages.set(slot, SKIPPED);
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Write a reserved page showing a JPEG image of the given pixel size, sized by the document resolution.
+     * The image is encoded before the document is locked, only appending it to the file is done under the lock.
+     * A failure while writing leaves the file unusable, the document can only be aborted.
+     */
+    public void addJpegPage(int slot, int width, int height, ImageData image) throws IOException {
+        synchronized (this) {
+            this.checkWritable();
+        }
+
+        // an encoding failure only loses this page, nothing has been written yet
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(BUFFER_SIZE);
+        image.writeTo(jpeg);
+
+        this.appendJpegPage(slot, width, height, jpeg);
+    }
+
+    private synchronized void appendJpegPage(int slot, int width, int height, ByteArrayOutputStream jpeg) throws IOException {
+        this.checkWritable();
+
+        if (this.pages.get(slot) != PENDING) {
+            throw new IllegalStateException("Page " + slot + " is not reserved");
+        }
+
+        double pageWidth = width * 72 / this.dpi;
+        double pageHeight = height * 72 / this.dpi;
+
+        try {
+            // image, with its encoded length
+            int imageId = this.beginObject();
+            this.write("<< /Type /XObject /Subtype /Image /Width " + width + " /Height " + height
+                + " /ColorSpace /DeviceRGB /BitsPerComponent 8 /Filter /DCTDecode /Length " + jpeg.size() + " >>\nstream\n");
+            jpeg.writeTo(this.out);
+            this.write("\nendstream\n");
+            this.endObject();
+
+            // content drawing the image over the whole page
+            String content = "q " + format(pageWidth) + " 0 0 " + format(pageHeight) + " 0 0 cm /Im0 Do Q";
+            int contentId = this.beginObject();
+            this.write("<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream\n");
+            this.endObject();
+
+            int pageId = this.beginObject();
+            this.write("<< /Type /Page /Parent " + PAGES_ID + " 0 R /MediaBox [0 0 " + format(pageWidth) + " " + format(pageHeight) + "]"
+                + " /Resources << /XObject << /Im0 " + imageId + " 0 R >> >> /Contents " + contentId + " 0 R >>\n");
+            this.endObject();
+
+            // flushed page by page, nothing is kept in memory
+            this.out.flush();
+
+            this.pages.set(slot, pageId);
+            this.notifyAll();
+        } catch (IOException | RuntimeException e) {
+            this.broken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the reserved pages to be added or skipped, then write the page tree and the trailer and close the file.
+     * Pages must be added by other threads than the closing one, or already be running.
+     */
+    public synchronized void close() throws IOException, InterruptedException {
+        while (!this.closed && this.pages.contains(PENDING)) {
+            this.wait();
+        }
+
+        if (this.broken) {
+            this.abort();
+        }
+
+        this.checkWritable();
+
+        try {
+            StringBuilder kids = new StringBuilder();
+            int count = 0;
+
+            for (int page : this.pages) {
+                if (page > 0) {
+                    kids.append(page).append(" 0 R ");
+                    count++;
+                }
+            }
+
+            this.offsets.set(PAGES_ID - 1, this.out.getCount());
+            this.write(PAGES_ID + " 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + count + " >>\n");
+            this.endObject();
+
+            this.offsets.set(CATALOG_ID - 1, this.out.getCount());
+            this.write(CATALOG_ID + " 0 obj\n<< /Type /Catalog /Pages " + PAGES_ID + " 0 R >>\n");
+            this.endObject();
+
+            // cross-reference table, entries are exactly 20 bytes
+            long xref = this.out.getCount();
+            StringBuilder table = new StringBuilder();
+            table.append("xref\n0 ").append(this.offsets.size() + 1).append("\n0000000000 65535 f\r\n");
+
+            for (long offset : this.offsets) {
+                table.append(String.format(Locale.US, "%010d 00000 n\r\n", offset));
+            }
+
+            this.write(table.toString());
+            this.write("trailer\n<< /Size " + (this.offsets.size() + 1) + " /Root " + CATALOG_ID + " 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+        } finally {
+            this.closed = true;
+            this.out.close();
+        }
+    }
+
+    /**
+     * Close the file without completing it, to be deleted by the caller
+     */
+    public synchronized void abort() {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        this.notifyAll();
+
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (this.broken) {
+            throw new IOException("Document is incomplete, a page failed to be written");
+        }
+
+        if (this.closed) {
+            throw new IllegalStateException("Document is closed");
+        }
+    }
+
+    private int beginObject() throws IOException {
+        this.offsets.add(this.out.getCount());
+        int id = this.offsets.size();
+        this.write(id + " 0 obj\n");
+
+        return id;
+    }
+
+    private void endObject() throws IOException {
+        this.write("endobj\n");
+    }
+
+    private void write(String text) throws IOException {
+        // the header comment is the only non ASCII text, its characters are written as single bytes
+        byte[] bytes = new byte[text.length()];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+
+        this.out.write(bytes);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    /**
+     * Keeps the file offset, object positions are needed for the cross-reference table
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return this.count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+}
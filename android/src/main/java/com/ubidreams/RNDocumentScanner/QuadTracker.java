@@ -0,0 +1,208 @@
+package com.ubidreams.RNDocumentScanner;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Follows a document across consecutive frames (no Android dependency).
+ * Once a document is found, next detections only run in a region around it, downscaled to about TRACKING_SIZE,
+ * where candidates are scored by DetectionCascade. Detection falls back to the whole frame when the document is lost,
+ * its confidence drops below DetectionCascade.MIN_CONFIDENCE or it jumps too far. Corners are smoothed to remove jitter,
+ * and the last quad is held for a few frames when detection misses.
+ */
+public class QuadTracker {
+
+    // region around the last quad, relative to its size
+    public static final double ROI_MARGIN = 0.25;
+    // long side above which the region searched while tracking is halved, smoothing makes up for the lower resolution
+    public static final int TRACKING_SIZE = 400;
+    // frames the last quad is kept when detection misses
+    public static final int MAX_MISSES = 3;
+    // larger corner moves are real moves, smaller ones are jitter (relative to the quad diagonal)
+    public static final double JITTER = 0.02;
+    // larger corner moves or area changes mean another document or a wrong detection
+    public static final double MAX_JUMP = 0.25;
+    public static final double MAX_AREA_CHANGE = 0.35;
+    public static final double SMOOTHING_JITTER = 0.3;
+    public static final double SMOOTHING_MOVE = 0.8;
+
+    private Point[] quad = null;
+    private int misses = 0;
+    private int frameWidth = 0;
+    private int frameHeight = 0;
+    private boolean lastFromRoi = false;
+    private final Mat roiMat = new Mat();
+
+    public void reset() {
+        this.quad = null;
+        this.misses = 0;
+    }
+
+    public void release() {
+        this.reset();
+        this.roiMat.release();
+    }
+
+    /**
+     * Whether the last tracked frame was searched in a region only
+     */
+    public boolean isLastFromRoi() {
+        return this.lastFromRoi;
+    }
+
+    /**
+     * Detect the document in the grayscale frame (modified in place), null if there is no document to show
+     */
+    public Point[] track(Mat gray) {
+        // new frame size (camera switch or rotation), start over
+        if (gray.cols() != this.frameWidth || gray.rows() != this.frameHeight) {
+            this.reset();
+            this.frameWidth = gray.cols();
+            this.frameHeight = gray.rows();
+        }
+
+        Point[] found = null;
+        Rect roi = this.quad != null ? this.getRoi() : null;
+        this.lastFromRoi = roi != null;
+
+        if (roi != null) {
+            // only search around the last quad, the frame is kept intact for a full search
+            // halved as needed (integer ratios keep INTER_AREA on its fast path)
+            double scale = 1;
+
+            while (Math.max(roi.width, roi.height) * scale > TRACKING_SIZE) {
+                scale /= 2;
+            }
+
+            Mat region = gray.submat(roi);
+
+            if (scale < 1) {
+                Imgproc.resize(region, this.roiMat, new Size(Math.round(roi.width * scale), Math.round(roi.height * scale)), 0, 0, Imgproc.INTER_AREA);
+            } else {
+                region.copyTo(this.roiMat);
+            }
+
+            region.release();
+
+            // scored, a low confidence is a lost document
+            DetectionResult result = DetectionCascade.detectContour(this.roiMat, null);
+            found = result != null ? result.points : null;
+
+            if (found != null) {
+                for (Point point : found) {
+                    point.x = point.x / scale + roi.x;
+                    point.y = point.y / scale + roi.y;
+                }
+
+                if (!this.isConsistent(found)) {
+                    found = null;
+                }
+            }
+        }
+
+        if (found == null) {
+            // lost in region or not confident, search the whole frame
+            this.lastFromRoi = false;
+            found = DocumentDetector.detect(gray, null);
+        }
+
+        if (found == null) {
+            if (this.quad != null && ++this.misses > MAX_MISSES) {
+                this.reset();
+            }
+
+            return this.copyQuad();
+        }
+
+        this.misses = 0;
+
+        if (this.quad == null || !this.isConsistent(found)) {
+            // new document, no smoothing
+            this.quad = found;
+        } else {
+            this.smooth(found);
+        }
+
+        return this.copyQuad();
+    }
+
+    private Rect getRoi() {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = 0, maxY = 0;
+
+        for (Point point : this.quad) {
+            minX = Math.min(minX, point.x);
+            minY = Math.min(minY, point.y);
+            maxX = Math.max(maxX, point.x);
+            maxY = Math.max(maxY, point.y);
+        }
+
+        double marginX = (maxX - minX) * ROI_MARGIN + DocumentDetector.KSIZE_CLOSE;
+        double marginY = (maxY - minY) * ROI_MARGIN + DocumentDetector.KSIZE_CLOSE;
+
+        int x = (int) Math.max(0, minX - marginX);
+        int y = (int) Math.max(0, minY - marginY);
+        int width = (int) Math.min(this.frameWidth, maxX + marginX) - x;
+        int height = (int) Math.min(this.frameHeight, maxY + marginY) - y;
+
+        return new Rect(x, y, width, height);
+    }
+
+    /**
+     * Whether the quad is the same document as the tracked one
+     */
+    private boolean isConsistent(Point[] found) {
+        if (this.quad == null) {
+            return true;
+        }
+
+        double diagonal = distance(this.quad[0], this.quad[2]);
+
+        for (int i = 0; i < 4; i++) {
+            if (distance(found[i], this.quad[i]) > diagonal * MAX_JUMP) {
+                return false;
+            }
+        }
+
+        double area = DocumentDetector.polygonArea(this.quad);
+
+        return Math.abs(DocumentDetector.polygonArea(found) - area) <= area * MAX_AREA_CHANGE;
+    }
+
+    /**
+     * Exponential smoothing, slow for jitter and fast for real moves
+     */
+    private void smooth(Point[] found) {
+        double diagonal = distance(this.quad[0], this.quad[2]);
+
+        for (int i = 0; i < 4; i++) {
+            double alpha = distance(found[i], this.quad[i]) > diagonal * JITTER ? SMOOTHING_MOVE : SMOOTHING_JITTER;
+
+            this.quad[i] = new Point(
+                this.quad[i].x + (found[i].x - this.quad[i].x) * alpha,
+                this.quad[i].y + (found[i].y - this.quad[i].y) * alpha
+            );
+        }
+    }
+
+    private Point[] copyQuad() {
+        if (this.quad == null) {
+            return null;
+        }
+
+        Point[] copy = new Point[4];
+
+        for (int i = 0; i < 4; i++) {
+            copy[i] = this.quad[i].clone();
+        }
+
+        return copy;
+    }
+
+    private static double distance(Point a, Point b) {
+        return Math.hypot(a.x - b.x, a.y - b.y);
+    }
+
+}
@@ -1,7 +1,6 @@
 package com.ubidreams.RNDocumentScanner;
 
-import android.graphics.Bitmap;
-import android.graphics.PointF;
+import android.util.Base64;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
@@ -15,27 +14,56 @@ import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 
-public class RNDocumentScannerModule extends ReactContextBaseJavaModule {
+public class RNDocumentScannerModule extends ReactContextBaseJavaModule implements FrameDetector.Listener {
+
+    public static final String FRAME_EDGES_EVENT = "RNDocumentScannerFrameEdges";
+    public static final String METRICS_EVENT = "RNDocumentScannerMetrics";
+    public static final String BATCH_PROGRESS_EVENT = "RNDocumentScannerBatchProgress";
+    public static final String EXPORT_CHUNK_EVENT = "RNDocumentScannerExportChunk";
 
     private final String tag = "RNDocumentScanner";
     private final ReactApplicationContext reactContext;
-    private BitmapOpenCV bitmap;
-
-    static {
-        System.loadLibrary("opencv_java3");
-    }
+    private final ScannerExecutor executor = new ScannerExecutor();
+    // created on first use, its buffers need OpenCV
+    private FrameDetector frameDetector = null;
+    private final DocumentCropper cropper;
+    private final BatchScanner batchScanner;
+    private final ScanSessions sessions = new ScanSessions();
+    private final DetectionCache detectionCache = new DetectionCache();
+    private final OutputStore outputStore;
+    private final ImageHandles handles = new ImageHandles();
+    private final Map<String, PdfWriter> documents = new HashMap<>();
 
     public RNDocumentScannerModule(final ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.outputStore = new OutputStore(reactContext.getCacheDir());
+        this.cropper = new DocumentCropper(this.outputStore, this.handles, this.executor.getWorkers());
+        this.batchScanner = new BatchScanner(this.cropper);
+        this.reactContext.registerComponentCallbacks(this.sessions);
+
+        // files of previous runs are listed in the background, not to delay the module creation
+        this.executor.getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                outputStore.cleanUp();
+            }
+        });
     }
 
     @Override
@@ -43,138 +71,829 @@ public class RNDocumentScannerModule extends ReactContextBaseJavaModule {
         return "RNDocumentScanner";
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        this.stopStreaming();
+        this.executor.shutdown();
+        this.batchScanner.shutdown();
+        this.reactContext.unregisterComponentCallbacks(this.sessions);
+        this.sessions.clear();
+        this.handles.clear();
+
+        // pool threads free their workspace as they exit, this one is freed here if it ever had one
+        DetectorWorkspace.release();
+
+        // unfinished documents are unusable
+        synchronized (this.documents) {
+            for (PdfWriter document : this.documents.values()) {
+                document.abort();
+                this.outputStore.release(document.getFile().getAbsolutePath());
+            }
+
+            this.documents.clear();
+        }
+    }
+
+    /**
+     * Camera integrations feed preview frames to this detector while streaming is started from JS.
+     * OpenCV is loaded on the first call, if prepare hasn't done it already.
+     */
+    public synchronized FrameDetector getFrameDetector() {
+        if (this.frameDetector == null) {
+            OpenCVLibrary.load();
+            this.frameDetector = new FrameDetector(this);
+        }
+
+        return this.frameDetector;
+    }
+
+    /**
+     * Load OpenCV and warm detection up in the background, for the first scan not to pay for it (when the scanner screen opens...).
+     * Resolved with the library loading and warm-up durations, in milliseconds.
+     */
+    @ReactMethod
+    public void prepare(Promise promise) {
+        this.executor.submit(null, false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() {
+                long warmUpTime = OpenCVLibrary.warmUp();
+
+                WritableMap result = Arguments.createMap();
+                result.putDouble("loadTime", OpenCVLibrary.getLoadTime());
+                result.putDouble("warmUpTime", warmUpTime);
+
+                return result;
+            }
+        }, promise);
+    }
+
     @ReactMethod
-    public void detectEdges(String imagePath, ReadableMap layout, Promise promise) {
+    public void detectEdges(final String imagePath, ReadableMap layout, ReadableMap options, Promise promise) {
         // get layout
-        int width = layout.getInt("width");
-        int height = layout.getInt("height");
+        final int width = layout.getInt("width");
+        final int height = layout.getInt("height");
 
-        // get bitmap from path
-        this.bitmap = new BitmapOpenCV(this.reactContext, imagePath, width, height);
+        // get options
+        final String jobId = this.getJobId(options);
+        final boolean metricsEnabled = options.hasKey("metrics") && options.getBoolean("metrics");
+        final int detectionSize = getDetectionSize(options);
+        final boolean cacheEnabled = !options.hasKey("cache") || options.getBoolean("cache");
 
-        // go opencv !
-        List<PointF> pointsFound = this.bitmap.detectEdges();
+        // a new detection supersedes the previous one
+        this.executor.submit(jobId, true, new ScannerExecutor.Job() {
+            @Override
+            public Object run() {
+                ScanMetrics metrics = metricsEnabled ? new ScanMetrics("detectEdges") : null;
 
-        // build points array
-        WritableArray points = new WritableNativeArray();
+                // get bitmap from path, an output file read again is kept longer
+                outputStore.touch(imagePath);
+                BitmapOpenCV bitmap = new BitmapOpenCV(imagePath, width, height);
+                ScannerExecutor.throwIfCancelled();
 
-        for (int i = 0; i < 4; i++) {
-            WritableMap point = new WritableNativeMap();
-            point.putDouble("x", pointsFound.get(i).x);
-            point.putDouble("y", pointsFound.get(i).y);
+                // go opencv !
+                DetectionResult detection = bitmap.detectEdges(detectionSize, cacheEnabled ? detectionCache : null, metrics);
+                ScannerExecutor.throwIfCancelled();
 
-            points.pushMap(point);
+                if (metrics != null) sendMetrics(jobId, metrics);
+
+                // new session for this image
+                String session = sessions.add(bitmap);
+                sessions.trimToBudget();
+
+                WritableMap result = toWritableMap(detection);
+                result.putString("session", session);
+
+                return result;
+            }
+        }, promise);
+    }
+
+    /**
+     * Move a session to a new layout (rotation, split-screen...) and map points of the previous layout to it,
+     * so that corners moved by the user are kept. Only arithmetic, the image is neither read nor detected again.
+     * The session id is kept, resolved with the points in the new layout.
+     */
+    @ReactMethod
+    public void changeLayout(String session, ReadableArray points, ReadableMap layout, Promise promise) {
+        BitmapOpenCV bitmap = this.sessions.get(session);
+
+        if (session == null || bitmap == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "Session " + session + " has expired");
+            return;
+        }
+
+        BitmapOpenCV relaid = bitmap.withFrameSize(layout.getInt("width"), layout.getInt("height"));
+        Point[] pts = bitmap.toFrame(toPoints(points), relaid);
+
+        if (pts == null) {
+            promise.reject(ScannerExecutor.E_UNREADABLE_IMAGE, "Unable to read image of session " + session);
+            return;
+        }
+
+        if (!this.sessions.replace(session, relaid)) {
+            promise.reject(ScannerExecutor.E_FAILED, "Session " + session + " has expired");
+            return;
         }
 
-        // resolve promise
-        promise.resolve(points);
+        WritableMap result = Arguments.createMap();
+        result.putArray("points", toWritableArray(pts));
+
+        promise.resolve(result);
+    }
+
+    /**
+     * Find every document of the image in a single detection pass (receipts, ID cards laid on a table...).
+     * Resolved with a session and the documents, most confident first, empty if none is found.
+     */
+    @ReactMethod
+    public void detectDocuments(final String imagePath, ReadableMap layout, ReadableMap options, Promise promise) {
+        // get layout
+        final int width = layout.getInt("width");
+        final int height = layout.getInt("height");
+
+        // get options
+        final String jobId = this.getJobId(options);
+        final boolean metricsEnabled = options.hasKey("metrics") && options.getBoolean("metrics");
+        final int detectionSize = getDetectionSize(options);
+        final int maxDocuments = options.hasKey("maxDocuments") ? options.getInt("maxDocuments") : DetectionCascade.DEFAULT_MAX_DOCUMENTS;
+
+        // a new detection supersedes the previous one
+        this.executor.submit(jobId, true, new ScannerExecutor.Job() {
+            @Override
+            public Object run() {
+                ScanMetrics metrics = metricsEnabled ? new ScanMetrics("detectDocuments") : null;
+
+                outputStore.touch(imagePath);
+                BitmapOpenCV bitmap = new BitmapOpenCV(imagePath, width, height);
+                ScannerExecutor.throwIfCancelled();
+
+                List<DetectionResult> detections = bitmap.findDocuments(detectionSize, maxDocuments, metrics);
+                ScannerExecutor.throwIfCancelled();
+
+                if (metrics != null) sendMetrics(jobId, metrics);
+
+                // new session for this image, all documents are cropped from it
+                String session = sessions.add(bitmap);
+                sessions.trimToBudget();
+
+                WritableArray documents = Arguments.createArray();
+
+                for (DetectionResult detection : detections) {
+                    documents.pushMap(toWritableMap(detection));
+                }
+
+                WritableMap result = Arguments.createMap();
+                result.putString("session", session);
+                result.putArray("documents", documents);
+
+                return result;
+            }
+        }, promise);
+    }
+
+    /**
+     * Sharpness and exposure of the image in the layout, to skip blurry or badly exposed photos before detection
+     */
+    @ReactMethod
+    public void analyzeImage(final String imagePath, ReadableMap layout, ReadableMap options, Promise promise) {
+        // get layout
+        final int width = layout.getInt("width");
+        final int height = layout.getInt("height");
+
+        this.executor.submit(this.getJobId(options), false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() {
+                outputStore.touch(imagePath);
+                BitmapOpenCV bitmap = new BitmapOpenCV(imagePath, width, height);
+                FrameQuality.Score quality = bitmap.measureQuality();
+
+                if (quality == null) {
+                    throw new UnreadableImageException(imagePath);
+                }
+
+                return toWritableMap(quality);
+            }
+        }, promise);
     }
 
     @ReactMethod
     public void crop(ReadableArray points, ReadableMap options, Promise promise) {
-        WritableMap result = Arguments.createMap();
+        // session returned by detectEdges, defaults to the last one
+        String session = options.hasKey("session") ? options.getString("session") : null;
+        final BitmapOpenCV bitmap = this.sessions.get(session);
+
+        if (bitmap == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "No image to crop, detectEdges must be called first or session " + session + " has expired");
+            return;
+        }
 
         // get points
-        ReadableMap topLeftPoint = points.getMap(0);
-        ReadableMap topRightPoint = points.getMap(1);
-        ReadableMap bottomRightPoint = points.getMap(2);
-        ReadableMap bottomLeftPoint = points.getMap(3);
+        final Point[] pts = toPoints(points);
 
         // get options
-        int width = options.getInt("width");
-        int height = options.getInt("height");
-        boolean thumbnail = options.getBoolean("thumbnail");
+        final CropOptions cropOptions = CropOptions.fromMap(options);
+        final String jobId = this.getJobId(options);
+        final boolean metricsEnabled = options.hasKey("metrics") && options.getBoolean("metrics");
+
+        this.executor.submit(jobId, false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() throws Exception {
+                ScanMetrics metrics = metricsEnabled ? new ScanMetrics("crop") : null;
 
-        // go opencv !
-        Point point1 = new Point(topLeftPoint.getDouble("x"), topLeftPoint.getDouble("y"));
-        Point point2 = new Point(topRightPoint.getDouble("x"), topRightPoint.getDouble("y"));
-        Point point3 = new Point(bottomRightPoint.getDouble("x"), bottomRightPoint.getDouble("y"));
-        Point point4 = new Point(bottomLeftPoint.getDouble("x"), bottomLeftPoint.getDouble("y"));
-        Point[] pts = {point1, point2, point3, point4};
+                WritableMap result = cropper.crop(bitmap, pts, cropOptions, metrics);
+                sessions.trimToBudget();
 
-        Bitmap croppedBitmap = this.bitmap.fourPointTransform(pts);
+                if (metrics != null) sendMetrics(jobId, metrics);
 
-        // resize cropped image ?
-        if (width > 0 || height > 0) {
-            croppedBitmap = this.resizeBitmap(croppedBitmap, width, height);
+                return result;
+            }
+        }, promise);
+    }
+
+    /**
+     * Crop several documents of a session (points arrays, as for crop) with the same options, the image is decoded once for all.
+     * Resolved with the crop results, in the order of the documents.
+     */
+    @ReactMethod
+    public void cropAll(ReadableArray documents, ReadableMap options, Promise promise) {
+        // session returned by detectDocuments, defaults to the last one
+        String session = options.hasKey("session") ? options.getString("session") : null;
+        final BitmapOpenCV bitmap = this.sessions.get(session);
+
+        if (bitmap == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "No image to crop, detectDocuments must be called first or session " + session + " has expired");
+            return;
         }
 
-        // save image to cache directory
-        String croppedImageFilePath = this.saveBitmapToCacheDirectory(croppedBitmap);
+        // get points of each document
+        final Point[][] pts = new Point[documents.size()][];
 
-        // add image file path to result
-        result.putString("image", "file://" + croppedImageFilePath);
+        for (int i = 0; i < pts.length; i++) {
+            pts[i] = toPoints(documents.getArray(i));
+        }
 
-        // create thumbnail ?
-        if (thumbnail) {
-            // resize original image to create a thumbnail
-            Bitmap thumbnailBitmap = this.resizeBitmap(croppedBitmap, 250, 250);
+        // get options
+        final CropOptions cropOptions = CropOptions.fromMap(options);
+        final String jobId = this.getJobId(options);
+        final boolean metricsEnabled = options.hasKey("metrics") && options.getBoolean("metrics");
 
-            // save thumbnail to cache directory
-            String thumbnailFilePath = this.saveBitmapToCacheDirectory(thumbnailBitmap);
+        this.executor.submit(jobId, false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() throws Exception {
+                ScanMetrics metrics = metricsEnabled ? new ScanMetrics("cropAll") : null;
 
-            // add thumbnail file path to result
-            result.putString("thumbnail", "file://" + thumbnailFilePath);
-        }
+                WritableArray results = cropper.cropAll(bitmap, pts, cropOptions, metrics);
+                sessions.trimToBudget();
 
-        // resolve promise with result
-        promise.resolve(result);
+                if (metrics != null) sendMetrics(jobId, metrics);
+
+                return results;
+            }
+        }, promise);
     }
 
-    private Bitmap resizeBitmap (Bitmap bitmap, int width, int height) {
-      Bitmap resizedBitmap = null;
-      float ratio;
+    /**
+     * Encode the image of a handle (crop with handle option) to a new file of the output store, format and quality as in crop
+     */
+    @ReactMethod
+    public void saveHandle(final String handle, ReadableMap options, Promise promise) {
+        final ImageEncoder encoder = ImageEncoder.fromOptions(options);
 
-      if (width < 0) width = 0;
-      if (height < 0) height = 0;
+        this.executor.submit(this.getJobId(options), false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() throws IOException {
+                ImageHandles.Image image = acquireHandle(handle);
 
-      float ratioX = (float) width / bitmap.getWidth();
-      float ratioY = (float) height / bitmap.getHeight();
+                try {
+                    File file = cropper.save(image.mat, encoder);
 
-      if (ratioX == 0 || ratioY == 0) {
-        if (ratioX > 0) {
-          ratio = ratioX;
-        } else {
-          ratio = ratioY;
+                    WritableMap result = Arguments.createMap();
+                    result.putString("image", "file://" + file.getAbsolutePath());
+                    result.putDouble("size", file.length());
+
+                    return result;
+                } finally {
+                    handles.release(image);
+                }
+            }
+        }, promise);
+    }
+
+    /**
+     * Resize the image of a handle to fit in width and height (thumbnails...), resolved with the handle of the new image
+     */
+    @ReactMethod
+    public void resizeHandle(final String handle, ReadableMap options, Promise promise) {
+        final int width = options.hasKey("width") ? options.getInt("width") : -1;
+        final int height = options.hasKey("height") ? options.getInt("height") : -1;
+
+        if (width <= 0 && height <= 0) {
+            promise.reject(ScannerExecutor.E_FAILED, "Width or height is required");
+            return;
         }
-      } else {
-        ratio = Math.min(ratioX, ratioY);
-      }
 
-      int finalWidth = (int) (bitmap.getWidth() * ratio);
-      int finalHeight = (int) (bitmap.getHeight() * ratio);
+        this.executor.submit(this.getJobId(options), false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() {
+                ImageHandles.Image image = acquireHandle(handle);
+                Mat resized = new Mat();
+
+                try {
+                    DocumentWarper.resizeToFit(image.mat, resized, width, height);
+                } catch (RuntimeException e) {
+                    resized.release();
+                    throw e;
+                } finally {
+                    handles.release(image);
+                }
+
+                WritableMap result = Arguments.createMap();
+                result.putInt("width", resized.cols());
+                result.putInt("height", resized.rows());
+                result.putString("handle", handles.add(resized));
+
+                return result;
+            }
+        }, promise);
+    }
+
+    /**
+     * Encode the image of a handle in memory, resolved with the base64 data.
+     * With chunkSize, the data is sent in RNDocumentScannerExportChunk events instead, without holding the whole file.
+     */
+    @ReactMethod
+    public void exportHandle(final String handle, ReadableMap options, Promise promise) {
+        final ImageEncoder encoder = ImageEncoder.fromOptions(options);
+        final String jobId = this.getJobId(options);
+        // multiple of 3 bytes, so that base64 chunks can be concatenated
+        final int chunkSize = options.hasKey("chunkSize") ? Math.max(3, options.getInt("chunkSize") / 3 * 3) : 0;
+
+        this.executor.submit(jobId, false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() throws Exception {
+                ImageHandles.Image image = acquireHandle(handle);
+                WritableMap result = Arguments.createMap();
+
+                try {
+                    if (chunkSize > 0) {
+                        ChunkedOutputStream stream = new ChunkedOutputStream(chunkSize, new ChunkedOutputStream.Listener() {
+                            @Override
+                            public void onChunk(int index, byte[] buffer, int length) {
+                                WritableMap event = Arguments.createMap();
+                                event.putString("jobId", jobId);
+                                event.putString("handle", handle);
+                                event.putInt("index", index);
+                                event.putString("data", Base64.encodeToString(buffer, 0, length, Base64.NO_WRAP));
+
+                                sendEvent(EXPORT_CHUNK_EVENT, event);
+                            }
+                        });
+
+                        cropper.encode(image.mat, encoder, stream);
+                        stream.close();
+
+                        result.putDouble("size", stream.getSize());
+                        result.putInt("chunks", stream.getChunkCount());
+                    } else {
+                        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                        cropper.encode(image.mat, encoder, stream);
+
+                        result.putString("data", Base64.encodeToString(stream.toByteArray(), Base64.NO_WRAP));
+                        result.putDouble("size", stream.size());
+                    }
+                } finally {
+                    handles.release(image);
+                }
+
+                return result;
+            }
+        }, promise);
+    }
 
-      try {
-          resizedBitmap = Bitmap.createScaledBitmap(bitmap, finalWidth, finalHeight, true);
-      } catch (OutOfMemoryError e) {
-          Log.d(tag, "Error resizing bitmap");
-          e.printStackTrace();
-      }
+    /**
+     * Free the image of a handle, once the app is done with it
+     */
+    @ReactMethod
+    public void releaseHandle(String handle) {
+        this.handles.remove(handle);
+    }
 
-      return resizedBitmap;
+    /**
+     * Memory budget (bytes) of the images kept by handle, least recently used images are released past it
+     */
+    @ReactMethod
+    public void configureHandles(ReadableMap options) {
+        long maxBytes = options.hasKey("maxBytes") ? (long) options.getDouble("maxBytes") : ImageHandles.DEFAULT_MAX_BYTES;
+
+        this.handles.configure(maxBytes);
     }
 
-    private String saveBitmapToCacheDirectory (Bitmap bitmap) {
-        FileOutputStream fos = null;
-        String fileName = UUID.randomUUID().toString() + ".png";
-        String imageFilePath = this.reactContext.getCacheDir().getAbsolutePath() + "/" + fileName;
+    /**
+     * Start a PDF document in the output store, resolved with its id.
+     * Pages are written to the file as they are added, the document is complete once closed.
+     */
+    @ReactMethod
+    public void openDocument(ReadableMap options, Promise promise) {
+        double dpi = options.hasKey("dpi") ? options.getDouble("dpi") : PdfWriter.DEFAULT_DPI;
 
         try {
-            fos = new FileOutputStream(imageFilePath);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
-        } catch (Exception e) {
-            Log.d(tag, "Error writing file in cache");
+            PdfWriter document = new PdfWriter(this.outputStore.newFile("pdf"), dpi);
+            String documentId = UUID.randomUUID().toString();
+
+            synchronized (this.documents) {
+                this.documents.put(documentId, document);
+            }
+
+            promise.resolve(documentId);
+        } catch (IOException e) {
+            Log.d(tag, "Error creating document");
             e.printStackTrace();
-        } finally {
-            try {
-                fos.close();
-            } catch (IOException e) {
-                Log.d(tag, "Error closing file output stream");
-                e.printStackTrace();
+            promise.reject(ScannerExecutor.E_FAILED, e.getMessage());
+        }
+    }
+
+    /**
+     * Crop a document (same points and options as crop, in JPEG) as the next page of an open PDF document.
+     * Pages keep the order of the calls, resolved with the page index.
+     * Pages share the bounded job queue, a page rejected (busy, cancelled or failed) is left out of the document.
+     */
+    @ReactMethod
+    public void addPage(String documentId, ReadableArray points, ReadableMap options, Promise promise) {
+        final PdfWriter document = this.getDocument(documentId);
+
+        if (document == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "No open document " + documentId);
+            return;
+        }
+
+        // session returned by detectEdges, defaults to the last one
+        String session = options.hasKey("session") ? options.getString("session") : null;
+        final BitmapOpenCV bitmap = this.sessions.get(session);
+
+        if (bitmap == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "No image to crop, detectEdges must be called first or session " + session + " has expired");
+            return;
+        }
+
+        // get points
+        final Point[] pts = toPoints(points);
+
+        // get options
+        final CropOptions cropOptions = CropOptions.fromMap(options);
+        final String jobId = this.getJobId(options);
+        final boolean metricsEnabled = options.hasKey("metrics") && options.getBoolean("metrics");
+        final int slot;
+
+        try {
+            slot = document.reservePage();
+        } catch (IOException | IllegalStateException e) {
+            promise.reject(ScannerExecutor.E_FAILED, e.getMessage());
+            return;
+        }
+
+        this.executor.submit(jobId, false, new ScannerExecutor.ReleasableJob() {
+            @Override
+            public Object run() throws Exception {
+                ScanMetrics metrics = metricsEnabled ? new ScanMetrics("addPage") : null;
+                boolean added = false;
+
+                try {
+                    cropper.cropToDocument(bitmap, pts, cropOptions, document, slot, metrics);
+                    added = true;
+                } finally {
+                    // closing the document waits for every reserved page
+                    if (!added) document.skipPage(slot);
+                }
+
+                sessions.trimToBudget();
+
+                if (metrics != null) sendMetrics(jobId, metrics);
+
+                return slot;
+            }
+
+            @Override
+            public void release() {
+                document.skipPage(slot);
+            }
+        }, promise);
+    }
+
+    /**
+     * Complete a PDF document once the pages being added are done, resolved with its file.
+     * Pages that failed to be added are left out and listed in missingPages.
+     * The document stays open if closing is rejected or cancelled.
+     */
+    @ReactMethod
+    public void closeDocument(final String documentId, Promise promise) {
+        final PdfWriter document;
+
+        synchronized (this.documents) {
+            document = this.documents.remove(documentId);
+        }
+
+        if (document == null) {
+            promise.reject(ScannerExecutor.E_FAILED, "No open document " + documentId);
+            return;
+        }
+
+        // pages are queued before the close job, they are all running or done once it starts waiting for them
+        this.executor.submit(null, false, new ScannerExecutor.ReleasableJob() {
+            @Override
+            public Object run() throws Exception {
+                File file = document.getFile();
+
+                try {
+                    document.close();
+                } catch (InterruptedException e) {
+                    this.release();
+                    throw new CancellationException();
+                } catch (IOException | RuntimeException e) {
+                    outputStore.release(file.getAbsolutePath());
+                    throw e;
+                }
+
+                outputStore.add(file);
+
+                WritableMap result = Arguments.createMap();
+                result.putString("document", "file://" + file.getAbsolutePath());
+                result.putDouble("size", file.length());
+                result.putInt("pageCount", document.getPageCount());
+
+                WritableArray missingPages = Arguments.createArray();
+
+                for (int slot : document.getSkippedPages()) {
+                    missingPages.pushInt(slot);
+                }
+
+                result.putArray("missingPages", missingPages);
+
+                return result;
             }
+
+            @Override
+            public void release() {
+                synchronized (documents) {
+                    documents.put(documentId, document);
+                }
+            }
+        }, promise);
+    }
+
+    /**
+     * Give up an open PDF document and delete its file
+     */
+    @ReactMethod
+    public void abortDocument(String documentId) {
+        PdfWriter document;
+
+        synchronized (this.documents) {
+            document = this.documents.remove(documentId);
         }
 
-        return imageFilePath;
+        if (document != null) {
+            document.abort();
+            this.outputStore.release(document.getFile().getAbsolutePath());
+        }
+    }
+
+    /**
+     * Detect and crop many pages on all cores, a progress event is sent as each page is done.
+     * Pages without document found are kept whole.
+     */
+    @ReactMethod
+    public void scanBatch(ReadableArray imagePaths, ReadableMap layout, ReadableMap options, Promise promise) {
+        // get layout
+        final int width = layout.getInt("width");
+        final int height = layout.getInt("height");
+
+        // get options
+        final CropOptions cropOptions = CropOptions.fromMap(options);
+        final String jobId = this.getJobId(options);
+        final int detectionSize = getDetectionSize(options);
+        final List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < imagePaths.size(); i++) {
+            paths.add(imagePaths.getString(i));
+            this.outputStore.touch(imagePaths.getString(i));
+        }
+
+        this.executor.submit(jobId, false, new ScannerExecutor.Job() {
+            @Override
+            public Object run() throws Exception {
+                return batchScanner.run(paths, width, height, detectionSize, cropOptions, new BatchScanner.Listener() {
+                    @Override
+                    public void onPageDone(int index, WritableMap page, int completed, int total) {
+                        WritableMap event = Arguments.createMap();
+                        event.putString("jobId", jobId);
+                        event.putInt("completed", completed);
+                        event.putInt("total", total);
+                        event.putMap("page", page);
+
+                        sendEvent(BATCH_PROGRESS_EVENT, event);
+                    }
+                });
+            }
+        }, promise);
+    }
+
+    /**
+     * Forget a session and free its decoded image, when its document won't be cropped again
+     */
+    @ReactMethod
+    public void releaseSession(String session) {
+        this.sessions.remove(session);
+    }
+
+    /**
+     * Delete a file written by the scanner (cropped image, thumbnail...), once the app is done with it
+     */
+    @ReactMethod
+    public void release(String path) {
+        this.outputStore.release(path);
+    }
+
+    /**
+     * Mark a file written by the scanner as used (shown or read again by the app), least recently used files are deleted first
+     */
+    @ReactMethod
+    public void touch(String path) {
+        this.outputStore.touch(path);
+    }
+
+    /**
+     * Size (bytes) and age (milliseconds) budgets of the files written by the scanner
+     */
+    @ReactMethod
+    public void configureOutputStore(ReadableMap options) {
+        long maxBytes = options.hasKey("maxBytes") ? (long) options.getDouble("maxBytes") : OutputStore.DEFAULT_MAX_BYTES;
+        long maxAge = options.hasKey("maxAge") ? (long) options.getDouble("maxAge") : OutputStore.DEFAULT_MAX_AGE;
+
+        this.outputStore.configure(maxBytes, maxAge);
+    }
+
+    /**
+     * Hits and misses of the detection cache since the module was created
+     */
+    @ReactMethod
+    public void getDetectionCacheStats(Promise promise) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", this.detectionCache.getHits());
+        stats.putDouble("misses", this.detectionCache.getMisses());
+        stats.putInt("size", this.detectionCache.size());
+        stats.putInt("maxSize", this.detectionCache.maxSize());
+
+        promise.resolve(stats);
+    }
+
+    @ReactMethod
+    public void cancel(String jobId) {
+        this.executor.cancel(jobId);
+    }
+
+    @ReactMethod
+    public void startStreaming(ReadableMap options) {
+        // get options
+        int maxFps = options.hasKey("maxFps") ? options.getInt("maxFps") : FrameDetector.DEFAULT_MAX_FPS;
+        int processingSize = options.hasKey("processingSize") ? options.getInt("processingSize") : FrameDetector.DEFAULT_PROCESSING_SIZE;
+        boolean qualityGate = options.hasKey("qualityGate") && options.getBoolean("qualityGate");
+
+        FrameDetector frameDetector = this.getFrameDetector();
+        frameDetector.configure(maxFps, processingSize, qualityGate);
+        frameDetector.start();
+    }
+
+    @ReactMethod
+    public void stopStreaming() {
+        FrameDetector frameDetector;
+
+        synchronized (this) {
+            frameDetector = this.frameDetector;
+        }
+
+        if (frameDetector != null) {
+            frameDetector.stop();
+        }
+    }
+
+    @Override
+    public void onFrameDetected(Point[] pointsFound, int width, int height, FrameQuality.Score quality) {
+        WritableMap event = Arguments.createMap();
+        event.putInt("width", width);
+        event.putInt("height", height);
+        event.putMap("quality", toWritableMap(quality));
+
+        // build points array (normalized coordinates)
+        if (pointsFound != null) {
+            WritableArray points = new WritableNativeArray();
+
+            for (int i = 0; i < 4; i++) {
+                WritableMap point = new WritableNativeMap();
+                point.putDouble("x", pointsFound[i].x);
+                point.putDouble("y", pointsFound[i].y);
+
+                points.pushMap(point);
+            }
+
+            event.putArray("points", points);
+        } else {
+            event.putNull("points");
+        }
+
+        this.sendEvent(FRAME_EDGES_EVENT, event);
+    }
+
+    private void sendMetrics(String jobId, ScanMetrics metrics) {
+        WritableMap event = metrics.toWritableMap();
+        event.putString("jobId", jobId);
+
+        this.sendEvent(METRICS_EVENT, event);
+    }
+
+    private static WritableMap toWritableMap(FrameQuality.Score quality) {
+        WritableMap map = Arguments.createMap();
+        map.putDouble("score", quality.score);
+        map.putDouble("sharpness", quality.sharpness);
+        map.putDouble("exposure", quality.exposure);
+        map.putDouble("stability", quality.stability);
+        map.putBoolean("acceptable", quality.acceptable);
+
+        return map;
+    }
+
+    /**
+     * Points, confidence and strategy of a detection, points in frame coordinates
+     */
+    private static WritableMap toWritableMap(DetectionResult detection) {
+        WritableMap map = Arguments.createMap();
+        map.putArray("points", toWritableArray(detection.points));
+        map.putDouble("confidence", detection.confidence);
+        map.putString("strategy", detection.strategy);
+
+        return map;
+    }
+
+    private static WritableArray toWritableArray(Point[] pts) {
+        WritableArray points = new WritableNativeArray();
+
+        for (Point pt : pts) {
+            WritableMap point = new WritableNativeMap();
+            point.putDouble("x", pt.x);
+            point.putDouble("y", pt.y);
+
+            points.pushMap(point);
+        }
+
+        return points;
+    }
+
+    private ImageHandles.Image acquireHandle(String handle) {
+        ImageHandles.Image image = this.handles.acquire(handle);
+
+        if (image == null) {
+            throw new IllegalArgumentException("Unknown or expired handle " + handle);
+        }
+
+        return image;
+    }
+
+    private PdfWriter getDocument(String documentId) {
+        synchronized (this.documents) {
+            return this.documents.get(documentId);
+        }
+    }
+
+    /**
+     * Top left, top right, bottom right and bottom left points
+     */
+    private static Point[] toPoints(ReadableArray points) {
+        Point[] pts = new Point[4];
+
+        for (int i = 0; i < 4; i++) {
+            ReadableMap point = points.getMap(i);
+            pts[i] = new Point(point.getDouble("x"), point.getDouble("y"));
+        }
+
+        return pts;
+    }
+
+    private String getJobId(ReadableMap options) {
+        return options.hasKey("jobId") ? options.getString("jobId") : UUID.randomUUID().toString();
+    }
+
+    /**
+     * Long side of the downscaled image used for detection, 0 to detect at the layout size
+     */
+    private int getDetectionSize(ReadableMap options) {
+        return options.hasKey("detectionSize") ? options.getInt("detectionSize") : 0;
+    }
+
+    private void sendEvent(String eventName, WritableMap params) {
+        if (this.reactContext.hasActiveCatalystInstance()) {
+            this.reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+        }
     }
 
 }
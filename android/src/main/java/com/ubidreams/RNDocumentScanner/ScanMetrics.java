@@ -0,0 +1,109 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.core.Mat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Opt-in timing and memory instrumentation of a scanner job.
+ * Stages are sequential: each lap measures the time elapsed since the previous one.
+ */
+public class ScanMetrics {
+
+    // last known buffer of Mats seen across jobs, so that reused scratch Mats are not counted as allocations
+    private static final Map<Mat, Long> matAddresses = new WeakHashMap<>();
+
+    private final String operation;
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+    private final long startTime;
+    private final long javaHeapStart;
+    private final long nativeHeapStart;
+    private long lapTime;
+    private long javaHeapPeak;
+    private long nativeHeapPeak;
+    private long matBytes = 0;
+
+    public ScanMetrics(String operation) {
+        this.operation = operation;
+        this.startTime = SystemClock.elapsedRealtimeNanos();
+        this.lapTime = this.startTime;
+        this.javaHeapStart = javaHeapUsed();
+        this.nativeHeapStart = Debug.getNativeHeapAllocatedSize();
+        this.javaHeapPeak = this.javaHeapStart;
+        this.nativeHeapPeak = this.nativeHeapStart;
+    }
+
+    /**
+     * End the current stage
+     */
+    public void lap(String stage) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        Long duration = this.durations.get(stage);
+
+        this.durations.put(stage, (duration != null ? duration : 0) + now - this.lapTime);
+        this.javaHeapPeak = Math.max(this.javaHeapPeak, javaHeapUsed());
+        this.nativeHeapPeak = Math.max(this.nativeHeapPeak, Debug.getNativeHeapAllocatedSize());
+        this.lapTime = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * End the current stage, counting the output Mat buffer if it has been (re)allocated by this stage
+     */
+    public void lap(String stage, Mat output) {
+        if (output != null && !output.empty()) {
+            Long previousAddress;
+
+            synchronized (matAddresses) {
+                previousAddress = matAddresses.put(output, output.dataAddr());
+            }
+
+            if (previousAddress == null || previousAddress != output.dataAddr()) {
+                this.matBytes += output.total() * output.elemSize();
+            }
+        }
+
+        this.lap(stage);
+    }
+
+    /**
+     * Exclude the time elapsed since the last lap (debug output for instance)
+     */
+    public void skip() {
+        this.lapTime = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public WritableMap toWritableMap() {
+        WritableMap result = Arguments.createMap();
+        WritableMap stages = Arguments.createMap();
+
+        for (Map.Entry<String, Long> entry : this.durations.entrySet()) {
+            stages.putDouble(entry.getKey(), entry.getValue() / 1e6);
+        }
+
+        result.putString("operation", this.operation);
+        result.putMap("stages", stages);
+        result.putDouble("totalTime", (SystemClock.elapsedRealtimeNanos() - this.startTime) / 1e6);
+        result.putDouble("matBytesAllocated", this.matBytes);
+        result.putDouble("javaHeapDelta", javaHeapUsed() - this.javaHeapStart);
+        result.putDouble("javaHeapPeakDelta", this.javaHeapPeak - this.javaHeapStart);
+        result.putDouble("nativeHeapDelta", Debug.getNativeHeapAllocatedSize() - this.nativeHeapStart);
+        result.putDouble("nativeHeapPeakDelta", this.nativeHeapPeak - this.nativeHeapStart);
+
+        return result;
+    }
+
+    private static long javaHeapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
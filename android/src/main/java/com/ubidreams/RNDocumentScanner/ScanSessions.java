@@ -0,0 +1,165 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Scanned images by session id, so that several scans can be cropped independently.
+ * Sessions are kept in least recently used order: the oldest ones are dropped past MAX_SESSIONS,
+ * and their decoded regions are released past the memory budget or when the system is low on memory.
+ * A released region is decoded again on the next crop.
+ * Regions are released out of the sessions lock, so that trim callbacks on the main thread don't wait for jobs.
+ */
+public class ScanSessions implements ComponentCallbacks2 {
+
+    private static final int MAX_SESSIONS = 8;
+
+    private final String tag = "RNDocumentScanner";
+    private final long maxBytes;
+    private final LinkedHashMap<String, BitmapOpenCV> sessions = new LinkedHashMap<>(MAX_SESSIONS, 0.75f, true);
+    private String lastId = null;
+
+    public ScanSessions() {
+        // decoded regions can take a large part of the heap, keep them to an eighth of it
+        this.maxBytes = Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    public String add(BitmapOpenCV bitmap) {
+        String id = UUID.randomUUID().toString();
+        List<BitmapOpenCV> dropped = new ArrayList<>();
+
+        synchronized (this) {
+            this.sessions.put(id, bitmap);
+            this.lastId = id;
+
+            // drop oldest sessions
+            Iterator<Map.Entry<String, BitmapOpenCV>> iterator = this.sessions.entrySet().iterator();
+
+            while (this.sessions.size() > MAX_SESSIONS && iterator.hasNext()) {
+                dropped.add(iterator.next().getValue());
+                iterator.remove();
+            }
+        }
+
+        releaseRegions(dropped);
+
+        return id;
+    }
+
+    /**
+     * Session by id, or the last added session when id is null (single scan flow)
+     */
+    public synchronized BitmapOpenCV get(String id) {
+        return this.sessions.get(id != null ? id : this.lastId);
+    }
+
+    /**
+     * Give a session another image (same image in a new layout), its id is kept
+     * @return false if the session is unknown or has expired
+     */
+    public boolean replace(String id, BitmapOpenCV bitmap) {
+        BitmapOpenCV previous;
+
+        synchronized (this) {
+            if (!this.sessions.containsKey(id)) {
+                return false;
+            }
+
+            previous = this.sessions.put(id, bitmap);
+        }
+
+        previous.releaseRegion();
+
+        return true;
+    }
+
+    public void remove(String id) {
+        BitmapOpenCV bitmap;
+
+        synchronized (this) {
+            bitmap = this.sessions.remove(id);
+        }
+
+        if (bitmap != null) {
+            bitmap.releaseRegion();
+        }
+    }
+
+    public void clear() {
+        List<BitmapOpenCV> dropped;
+
+        synchronized (this) {
+            dropped = new ArrayList<>(this.sessions.values());
+            this.sessions.clear();
+            this.lastId = null;
+        }
+
+        releaseRegions(dropped);
+    }
+
+    /**
+     * Release decoded regions, least recently used first, until they fit in the given number of bytes
+     */
+    public void trim(long bytes) {
+        List<BitmapOpenCV> bitmaps;
+
+        synchronized (this) {
+            bitmaps = new ArrayList<>(this.sessions.values());
+        }
+
+        long total = 0;
+
+        for (BitmapOpenCV bitmap : bitmaps) {
+            total += bitmap.getRegionBytes();
+        }
+
+        Iterator<BitmapOpenCV> iterator = bitmaps.iterator();
+
+        while (total > bytes && iterator.hasNext()) {
+            BitmapOpenCV bitmap = iterator.next();
+            total -= bitmap.getRegionBytes();
+            bitmap.releaseRegion();
+        }
+    }
+
+    private static void releaseRegions(List<BitmapOpenCV> bitmaps) {
+        for (BitmapOpenCV bitmap : bitmaps) {
+            bitmap.releaseRegion();
+        }
+    }
+
+    /**
+     * Keep decoded regions within the memory budget, to be called after a session decoded its image
+     */
+    public void trimToBudget() {
+        this.trim(this.maxBytes);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            Log.d(tag, "Releasing decoded images on memory trim (level " + level + ")");
+            this.trim(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            this.trim(this.maxBytes / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        this.trim(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.ubidreams.RNDocumentScanner;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs scanner jobs off the React Native modules thread and settles their promise.
+ * Detection jobs supersede each other: only the latest one is kept, older ones are cancelled.
+ * Jobs run with the OpenCV library loaded, it is loaded by the first one.
+ */
+public class ScannerExecutor {
+
+    public interface Job {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Job holding something to give back if it never runs, rejected as busy or cancelled while queued
+     */
+    public interface ReleasableJob extends Job {
+        void release();
+    }
+
+    public static final String E_CANCELLED = "E_CANCELLED";
+    public static final String E_BUSY = "E_BUSY";
+    public static final String E_FAILED = "E_FAILED";
+    public static final String E_UNREADABLE_IMAGE = "E_UNREADABLE_IMAGE";
+
+    private static final int THREADS = 2;
+    private static final int QUEUE_SIZE = 8;
+
+    private final String tag = "RNDocumentScanner";
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService workers;
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private Task detectionTask = null;
+
+    public ScannerExecutor() {
+        this.executor = new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            30,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+            createThreadFactory("RNDocumentScanner-")
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+
+        // one worker per core for the parallel parts of a job
+        int cores = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            cores,
+            cores,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            createThreadFactory("RNDocumentScanner-worker-")
+        );
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+    }
+
+    /**
+     * Pool for the parallel parts of a job (encoding, tiles...).
+     * Tasks run there must never wait for other workers tasks, so that the pool can't deadlock.
+     */
+    public ExecutorService getWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * Background priority threads, releasing their detection workspace when they exit (idle timeout or shutdown)
+     */
+    static ThreadFactory createThreadFactory(final String namePrefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                        try {
+                            runnable.run();
+                        } finally {
+                            DetectorWorkspace.release();
+                        }
+                    }
+                }, namePrefix + threadCount.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Throw when the job running on the current thread has been cancelled, to be called between heavy steps
+     */
+    public static void throwIfCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Queue a job, the promise is settled with its result, or rejected if it fails or is cancelled.
+     * A detection job cancels the previous detection job, whether it is still queued or running.
+     */
+    public synchronized String submit(String jobId, boolean detection, Job job, Promise promise) {
+        if (jobId == null) {
+            jobId = UUID.randomUUID().toString();
+        }
+
+        Task task = new Task(jobId, job, promise);
+
+        if (detection) {
+            if (this.detectionTask != null) {
+                this.detectionTask.cancel("Detection superseded by job " + jobId);
+            }
+
+            this.detectionTask = task;
+        }
+
+        Task previous = this.tasks.put(jobId, task);
+
+        if (previous != null) {
+            previous.cancel("Job " + jobId + " submitted again");
+        }
+
+        try {
+            task.future = this.executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            this.tasks.remove(jobId, task);
+            task.reject(E_BUSY, "Too many scanner jobs queued");
+            task.release();
+        }
+
+        return jobId;
+    }
+
+    public boolean cancel(String jobId) {
+        Task task = this.tasks.get(jobId);
+
+        if (task == null) {
+            return false;
+        }
+
+        task.cancel("Job " + jobId + " cancelled");
+
+        return true;
+    }
+
+    public void shutdown() {
+        for (Task task : this.tasks.values()) {
+            task.cancel("Scanner shut down");
+        }
+
+        this.executor.shutdownNow();
+        this.workers.shutdownNow();
+    }
+
+    private synchronized void onTaskDone(Task task) {
+        this.tasks.remove(task.id, task);
+
+        if (this.detectionTask == task) {
+            this.detectionTask = null;
+        }
+    }
+
+    private class Task implements Runnable {
+
+        private final String id;
+        private final Job job;
+        private final Promise promise;
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private volatile Future<?> future;
+
+        Task(String id, Job job, Promise promise) {
+            this.id = id;
+            this.job = job;
+            this.promise = promise;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!this.started.compareAndSet(false, true)) {
+                    return;
+                }
+
+                if (this.settled.get()) {
+                    this.releaseJob();
+                    return;
+                }
+
+                OpenCVLibrary.load();
+
+                Object result = this.job.run();
+                throwIfCancelled();
+
+                if (this.settled.compareAndSet(false, true)) {
+                    this.promise.resolve(result);
+                }
+            } catch (CancellationException e) {
+                this.reject(E_CANCELLED, "Job " + this.id + " cancelled");
+            } catch (UnreadableImageException e) {
+                Log.d(tag, e.getMessage());
+                this.reject(E_UNREADABLE_IMAGE, e.getMessage());
+            } catch (Exception e) {
+                Log.d(tag, "Error running job " + this.id);
+                e.printStackTrace();
+                this.reject(E_FAILED, e.getMessage());
+            } catch (OutOfMemoryError e) {
+                Log.d(tag, "Out of memory running job " + this.id);
+                this.reject(E_FAILED, "Out of memory");
+            } finally {
+                // clear interrupted flag before the thread is reused
+                Thread.interrupted();
+                onTaskDone(this);
+            }
+        }
+
+        void cancel(String reason) {
+            if (this.reject(E_CANCELLED, reason)) {
+                Future<?> future = this.future;
+
+                if (future != null) {
+                    future.cancel(true);
+                }
+
+                // a running job is interrupted instead, it cleans up after itself
+                this.release();
+
+                onTaskDone(this);
+            }
+        }
+
+        /**
+         * Release the job if it hasn't started, it won't run anymore
+         */
+        void release() {
+            if (this.started.compareAndSet(false, true)) {
+                this.releaseJob();
+            }
+        }
+
+        private void releaseJob() {
+            if (this.job instanceof ReleasableJob) {
+                ((ReleasableJob) this.job).release();
+            }
+        }
+
+        boolean reject(String code, String message) {
+            if (this.settled.compareAndSet(false, true)) {
+                this.promise.reject(code, message);
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.ubidreams.RNDocumentScanner;
+
+/**
+ * Image file missing, or in a format that can't be decoded, jobs reading it are rejected with E_UNREADABLE_IMAGE
+ */
+public class UnreadableImageException extends RuntimeException {
+
+    public UnreadableImageException(String imagePath) {
+        super("Unable to read image " + imagePath);
+    }
+
+}
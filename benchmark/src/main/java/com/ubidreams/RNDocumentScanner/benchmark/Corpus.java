@@ -0,0 +1,116 @@
+package com.ubidreams.RNDocumentScanner.benchmark;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+
+/**
+ * Benchmark images, either photos given by path or generated documents.
+ * Generated documents are deterministic so that runs are comparable across machines:
+ *  - "synthetic" a sheet slightly rotated on a textured table,
+ *  - "synthetic-skewed" a sheet under a strong perspective,
+ *  - "synthetic-dark" a low contrast sheet in a dark scene,
+ *  - "synthetic-low-contrast" a sheet on a light table.
+ */
+public class Corpus {
+
+    private static boolean loaded = false;
+
+    public static synchronized void loadOpenCV() {
+        if (!loaded) {
+            nu.pattern.OpenCV.loadLocally();
+            loaded = true;
+        }
+    }
+
+    /**
+     * Load an image as RGBA (same layout as Android bitmaps), resized so that its long side is the given size
+     */
+    public static Mat load(String image, int longSide) {
+        Mat bgr;
+
+        if (image.startsWith("synthetic")) {
+            bgr = generate(image);
+        } else {
+            bgr = Imgcodecs.imread(image);
+
+            if (bgr.empty()) {
+                throw new IllegalArgumentException("Unable to read image " + image);
+            }
+        }
+
+        double scale = (double) longSide / Math.max(bgr.cols(), bgr.rows());
+        Mat resized = new Mat();
+        Imgproc.resize(bgr, resized, new Size(Math.round(bgr.cols() * scale), Math.round(bgr.rows() * scale)), 0, 0, Imgproc.INTER_AREA);
+        bgr.release();
+
+        Mat rgba = new Mat();
+        Imgproc.cvtColor(resized, rgba, Imgproc.COLOR_BGR2RGBA);
+        resized.release();
+
+        return rgba;
+    }
+
+    private static Mat generate(String image) {
+        int width = 3000;
+        int height = 4000;
+        boolean dark = image.equals("synthetic-dark");
+        boolean light = image.equals("synthetic-low-contrast");
+
+        // table with some wood-like texture
+        Scalar table = dark ? new Scalar(40, 45, 50) : light ? new Scalar(185, 195, 205) : new Scalar(70, 100, 140);
+        Mat mat = new Mat(height, width, CvType.CV_8UC3, table);
+        Mat noise = new Mat(height, width, CvType.CV_8UC3);
+        Core.randn(noise, 0, dark ? 6 : 18);
+        Core.add(mat, noise, mat);
+        for (int y = 0; y < height; y += 37) {
+            Imgproc.line(mat, new Point(0, y), new Point(width, y + 80), new Scalar(table.val[0] * 0.88, table.val[1] * 0.86, table.val[2] * 0.86), 3);
+        }
+
+        // sheet of paper
+        Point[] sheet;
+
+        if (image.equals("synthetic-skewed")) {
+            sheet = new Point[] {new Point(900, 700), new Point(2300, 850), new Point(2750, 3500), new Point(250, 3300)};
+        } else {
+            sheet = new Point[] {new Point(520, 480), new Point(2480, 600), new Point(2380, 3520), new Point(420, 3400)};
+        }
+
+        Scalar paper = dark ? new Scalar(95, 100, 105) : new Scalar(225, 230, 235);
+        Imgproc.fillConvexPoly(mat, new MatOfPoint(sheet), paper);
+
+        // text lines
+        Scalar ink = dark ? new Scalar(60, 60, 60) : new Scalar(40, 40, 40);
+        for (double t = 0.1; t < 0.9; t += 0.03) {
+            Point left = interpolate(interpolate(sheet[0], sheet[3], t), interpolate(sheet[1], sheet[2], t), 0.1);
+            Point right = interpolate(interpolate(sheet[0], sheet[3], t), interpolate(sheet[1], sheet[2], t), 0.5 + 0.4 * ((t * 7) % 1));
+            Imgproc.line(mat, left, right, ink, 12);
+        }
+
+        // lighting gradient and camera blur
+        Mat shade = new Mat(height / 20, width / 20, CvType.CV_8UC3, new Scalar(0, 0, 0));
+        Imgproc.fillPoly(shade, Collections.singletonList(new MatOfPoint(new Point(width / 20, 0), new Point(width / 20, height / 20), new Point(width / 40, height / 20))), new Scalar(30, 30, 30));
+        Imgproc.GaussianBlur(shade, shade, new Size(0, 0), 20);
+        Imgproc.resize(shade, shade, new Size(width, height));
+        Core.subtract(mat, shade, mat);
+        Imgproc.GaussianBlur(mat, mat, new Size(5, 5), 0);
+
+        noise.release();
+        shade.release();
+
+        return mat;
+    }
+
+    private static Point interpolate(Point a, Point b, double t) {
+        return new Point(a.x + (b.x - a.x) * t, a.y + (b.y - a.y) * t);
+    }
+
+}
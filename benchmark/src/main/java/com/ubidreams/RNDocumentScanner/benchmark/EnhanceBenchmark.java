@@ -0,0 +1,76 @@
+package com.ubidreams.RNDocumentScanner.benchmark;
+
+import com.ubidreams.RNDocumentScanner.DocumentEnhancer;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Page enhancement on a single thread (whole page) against tiles on one worker per core.
+ * Run on the device core count, e.g. "-jvmArgs -XX:ActiveProcessorCount=8".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnhanceBenchmark {
+
+    @Param({"color", "grayscale", "bw"})
+    public String mode;
+
+    // long side of the warped page, in pixels (2480 is an A4 page at 300 dpi)
+    @Param({"1240", "2480"})
+    public int resolution;
+
+    private Mat page;
+    private ExecutorService workers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Corpus.loadOpenCV();
+
+        this.page = Corpus.load("synthetic-dark", this.resolution);
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.page.release();
+        this.workers.shutdownNow();
+    }
+
+    @Benchmark
+    public int wholePage() throws Exception {
+        Mat enhanced = DocumentEnhancer.enhance(this.page, this.mode, null);
+        int rows = enhanced.rows();
+        enhanced.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int tiled() throws Exception {
+        Mat enhanced = DocumentEnhancer.enhance(this.page, this.mode, this.workers);
+        int rows = enhanced.rows();
+        enhanced.release();
+        return rows;
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.ubidreams.RNDocumentScanner.benchmark;
+
+import com.ubidreams.RNDocumentScanner.DetectionCascade;
+import com.ubidreams.RNDocumentScanner.DetectionResult;
+import com.ubidreams.RNDocumentScanner.DocumentDetector;
+import com.ubidreams.RNDocumentScanner.DocumentWarper;
+import com.ubidreams.RNDocumentScanner.FrameQuality;
+import com.ubidreams.RNDocumentScanner.QuadTracker;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of each stage of the detection and warp pipeline.
+ * Stages modifying their input work on a copy, "copy" measures that overhead.
+ * Run with "-prof gc" to get the Java allocation rate of each stage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"synthetic", "synthetic-skewed", "synthetic-dark", "synthetic-low-contrast"})
+    public String image;
+
+    // long side of the detection input, in pixels (a phone layout is 700-900, the full photo 3000-4000)
+    @Param({"480", "960", "1920"})
+    public int resolution;
+
+    private Mat rgba;
+    private Mat gray;
+    private Mat edges;
+    private Mat scratch;
+    private List<Point[]> hulls;
+    private Point[] quad;
+    private QuadTracker tracker;
+    private FrameQuality quality;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Corpus.loadOpenCV();
+
+        this.rgba = Corpus.load(this.image, this.resolution);
+        this.gray = new Mat();
+        Imgproc.cvtColor(this.rgba, this.gray, Imgproc.COLOR_RGBA2GRAY);
+
+        this.edges = this.gray.clone();
+        DocumentDetector.findEdges(this.edges, null);
+
+        this.scratch = this.edges.clone();
+        this.hulls = DocumentDetector.findLargestContours(this.scratch);
+
+        this.quad = this.hulls != null ? DocumentDetector.findLargestSquares(this.hulls) : null;
+
+        // no document found: warp the centered half of the image, as the Android module does
+        if (this.quad == null) {
+            double width = this.rgba.cols();
+            double height = this.rgba.rows();
+            this.quad = new Point[] {
+                new Point(width / 4, height / 4),
+                new Point(width * 3 / 4, height / 4),
+                new Point(width * 3 / 4, height * 3 / 4),
+                new Point(width / 4, height * 3 / 4),
+            };
+        }
+
+        // tracker following the document found on a first frame
+        this.tracker = new QuadTracker();
+        this.gray.copyTo(this.scratch);
+        this.tracker.track(this.scratch);
+
+        this.quality = new FrameQuality();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.rgba.release();
+        this.gray.release();
+        this.edges.release();
+        this.scratch.release();
+        this.tracker.release();
+        this.quality.release();
+    }
+
+    @Benchmark
+    public Mat copy() {
+        this.gray.copyTo(this.scratch);
+        return this.scratch;
+    }
+
+    @Benchmark
+    public Mat grayscale() {
+        Imgproc.cvtColor(this.rgba, this.scratch, Imgproc.COLOR_RGBA2GRAY);
+        return this.scratch;
+    }
+
+    @Benchmark
+    public Mat findEdges() {
+        this.gray.copyTo(this.scratch);
+        DocumentDetector.findEdges(this.scratch, null);
+        return this.scratch;
+    }
+
+    @Benchmark
+    public List<Point[]> findSquares() {
+        this.gray.copyTo(this.scratch);
+        return DocumentDetector.findSquares(this.scratch, null);
+    }
+
+    @Benchmark
+    public List<Point[]> findLargestContours() {
+        this.edges.copyTo(this.scratch);
+        return DocumentDetector.findLargestContours(this.scratch);
+    }
+
+    @Benchmark
+    public List<Point[]> findLargestContoursMultiple() {
+        // budget of a multiple documents detection: more hulls, down to smaller contours
+        this.edges.copyTo(this.scratch);
+        return DocumentDetector.findLargestContours(this.scratch, DetectionCascade.MAX_CONTOURS_MULTIPLE, DetectionCascade.MIN_AREA_MULTIPLE);
+    }
+
+    @Benchmark
+    public Point[] findLargestSquares() {
+        return this.hulls != null ? DocumentDetector.findLargestSquares(this.hulls) : null;
+    }
+
+    @Benchmark
+    public Point[] sortPoints() {
+        return DocumentDetector.sortPoints(this.quad);
+    }
+
+    @Benchmark
+    public Point[] detect() {
+        Imgproc.cvtColor(this.rgba, this.scratch, Imgproc.COLOR_RGBA2GRAY);
+        return DocumentDetector.detect(this.scratch, null);
+    }
+
+    @Benchmark
+    public DetectionResult detectCascade() {
+        Imgproc.cvtColor(this.rgba, this.scratch, Imgproc.COLOR_RGBA2GRAY);
+        return DetectionCascade.detect(this.scratch, null);
+    }
+
+    @Benchmark
+    public List<DetectionResult> detectAll() {
+        // every document of the image (compare with detectCascade)
+        Imgproc.cvtColor(this.rgba, this.scratch, Imgproc.COLOR_RGBA2GRAY);
+        return DetectionCascade.detectAll(this.scratch, DetectionCascade.DEFAULT_MAX_DOCUMENTS, null);
+    }
+
+    @Benchmark
+    public Point[] track() {
+        // next frame, searched around the document when one has been found (compare with detect)
+        this.gray.copyTo(this.scratch);
+        return this.tracker.track(this.scratch);
+    }
+
+    @Benchmark
+    public FrameQuality.Score frameQuality() {
+        // quality gate run on each frame before detection
+        FrameQuality.Score score = this.quality.measure(this.gray);
+        return this.quality.withStability(score, this.quad, this.gray.cols(), this.gray.rows());
+    }
+
+    @Benchmark
+    public Point[] refineCorners() {
+        // corners found on a 320px image, refined in windows of the full image
+        int halfSize = Math.max(5, Math.min(32, (int) Math.ceil(this.resolution / 320.0 * 2)));
+        Point[] refined = new Point[4];
+
+        for (int i = 0; i < 4; i++) {
+            int x = (int) Math.max(0, Math.min(this.gray.cols() - halfSize * 4 - 1, this.quad[i].x - halfSize * 2));
+            int y = (int) Math.max(0, Math.min(this.gray.rows() - halfSize * 4 - 1, this.quad[i].y - halfSize * 2));
+            Mat window = this.gray.submat(new Rect(x, y, halfSize * 4 + 1, halfSize * 4 + 1));
+            refined[i] = DocumentDetector.refineCorner(window, new Point(this.quad[i].x - x, this.quad[i].y - y), halfSize);
+            window.release();
+        }
+
+        return refined;
+    }
+
+    @Benchmark
+    public int fourPointTransform() {
+        Mat undistorted = DocumentWarper.warp(this.rgba, this.quad);
+        int rows = undistorted.rows();
+        undistorted.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int fourPointTransformBanded() {
+        // bands of at most 1 MB of source, copied as a region decoder would decode them
+        Mat undistorted = new Mat(DocumentWarper.documentSize(this.quad), this.rgba.type());
+        DocumentWarper.warpInBands(this.quad, this.rgba.cols(), this.rgba.rows(), undistorted, 1024 * 1024, new DocumentWarper.BandSource() {
+            @Override
+            public void read(int left, int top, int right, int bottom, Mat destination) {
+                Mat band = rgba.submat(top, bottom, left, right);
+                band.copyTo(destination);
+                band.release();
+            }
+        });
+        int rows = undistorted.rows();
+        undistorted.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int fourPointTransformToSize() {
+        // typical crop option, warped straight to the output size
+        Mat undistorted = DocumentWarper.warp(this.rgba, this.quad, 1000, 1000);
+        int rows = undistorted.rows();
+        undistorted.release();
+        return rows;
+    }
+
+}
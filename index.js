@@ -34,6 +34,7 @@ class DocumentScanner extends Component {
 
     this.initialState = {
       photo: null,
+      session: null,
       points: [],
       zoomOnPoint: null,
     };
@@ -42,12 +43,30 @@ class DocumentScanner extends Component {
       ...this.initialState,
       layout: {},
     };
+
+    this.detectionJobId = null;
+  }
+
+  componentDidMount() {
+    // load and warm the scanner up while the camera starts, not on the first capture
+    RNDocumentScanner.prepare().catch(() => {});
   }
 
   /**
    * Allow to restart and scan document again
    */
   restart = () => {
+    // cancel pending edges detection
+    if (this.detectionJobId !== null) {
+      RNDocumentScanner.cancel(this.detectionJobId);
+      this.detectionJobId = null;
+    }
+
+    // free image of the previous scan
+    if (this.state.session !== null) {
+      RNDocumentScanner.releaseSession(this.state.session);
+    }
+
     this.setState(this.initialState);
   };
 
@@ -56,7 +75,15 @@ class DocumentScanner extends Component {
    * @param options = {
    *    width: Number
    *    height: Number,
-   *    thumbnail: Boolean
+   *    thumbnail: Boolean,
+   *    format: "png" | "jpeg" | "webp" | "webp-lossless" (Android only, default "png"),
+   *    quality: Number (0-100, jpeg and webp only, default 90),
+   *    colorMode: "color" | "grayscale" | "bilevel" (Android only, default "color", "bilevel" binarizes as enhance "bw" without removing shadows),
+   *    enhance: "color" | "grayscale" | "bw" (remove shadows and stretch contrast, "bw" binarizes for OCR, Android only),
+   *    handle: Boolean (keep the image in memory and resolve its handle instead of a file, Android only),
+   *    session: String (scan to crop, defaults to the current one),
+   *    jobId: String (allow to cancel cropping),
+   *    metrics: Boolean (emit timings as RNDocumentScannerMetrics event, Android only)
    * }
    * @return Promise
    */
@@ -65,6 +92,7 @@ class DocumentScanner extends Component {
       width: -1,
       height: -1,
       thumbnail: false,
+      session: this.state.session,
       ...options,
     };
 
@@ -76,11 +104,108 @@ class DocumentScanner extends Component {
    * @param layout
    */
   _handleLayout = async ({ nativeEvent: { layout } }) => {
-    // TODO: update points positions when layout has changed
+    const { photo, session, points, layout: previousLayout } = this.state;
+
     // update state
     this.setState({
       layout,
     });
+
+    if (
+      photo === null ||
+      (layout.width === previousLayout.width &&
+        layout.height === previousLayout.height)
+    ) {
+      return;
+    }
+
+    // keep the corners as they are (moved by the user or not), only mapped to the new layout
+    if (points.length > 0) {
+      const layoutPoints = await this._mapPoints(
+        session,
+        points,
+        previousLayout,
+        layout
+      );
+
+      if (layoutPoints !== null) {
+        // corners moved in the meantime are already in the new layout
+        if (this.state.session === session && this.state.points === points) {
+          this.setState({ points: layoutPoints });
+        }
+
+        return;
+      }
+    }
+
+    // no corners yet (or session expired), detected corners are cached so the image is not processed again
+    const detection = await this._detectEdges(photo, layout);
+
+    if (detection === null || this.state.photo !== photo) {
+      return;
+    }
+
+    RNDocumentScanner.releaseSession(session);
+
+    this.setState({ session: detection.session, points: detection.points });
+  };
+
+  /**
+   * Map points from a layout to another one, the session is kept
+   * @return Promise resolved with the points, or null if the session has expired
+   */
+  _mapPoints = async (session, points, previousLayout, layout) => {
+    // the photo is stretched to the layout
+    if (Platform.OS === "ios") {
+      return points.map(({ x, y }) => ({
+        x: (x * layout.width) / previousLayout.width,
+        y: (y * layout.height) / previousLayout.height,
+      }));
+    }
+
+    // the photo covers the layout, the session image region follows the layout ratio
+    try {
+      const result = await RNDocumentScanner.changeLayout(
+        session,
+        points,
+        layout
+      );
+
+      return result.points;
+    } catch (error) {
+      return null;
+    }
+  };
+
+  /**
+   * Detect document edges of a photo in the given layout
+   * @param uri
+   * @param layout
+   * @return Promise resolved with { session, points }, or null if detection has been superseded
+   */
+  _detectEdges = async (uri, layout) => {
+    const jobId = `detection-${Date.now()}`;
+
+    this.detectionJobId = jobId;
+
+    try {
+      return await RNDocumentScanner.detectEdges(
+        uri.replace("file://", ""),
+        layout,
+        { jobId }
+      );
+    } catch (error) {
+      // detection has been cancelled or superseded by another capture
+      if (error.code === "E_CANCELLED") {
+        return null;
+      }
+
+      throw error;
+    } finally {
+      if (this.detectionJobId === jobId) {
+        this.detectionJobId = null;
+      }
+    }
   };
 
   /**
@@ -235,13 +360,16 @@ class DocumentScanner extends Component {
     const { uri } = await camera.takePictureAsync(options);
 
     // attempt to identify document from opencv
-    const points = await RNDocumentScanner.detectEdges(
-      uri.replace("file://", ""),
-      layout
-    );
+    const detection = await this._detectEdges(uri, layout);
+
+    if (detection === null) {
+      return;
+    }
+
+    const { session, points } = detection;
 
     // update state
-    this.setState({ photo: uri, points }, () => {
+    this.setState({ photo: uri, session, points }, () => {
       // callback from props
       this.props.onEndCapture();
     });
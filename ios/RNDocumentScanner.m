@@ -12,6 +12,7 @@ RCT_EXPORT_MODULE()
 RCT_REMAP_METHOD(detectEdges,
                  detectEdges:(NSString *)imagePath
                  layout:(NSDictionary *)layout
+                 options:(NSDictionary *)options
                  resolver:(RCTPromiseResolveBlock)resolve
                  rejecter:(RCTPromiseRejectBlock)reject)
 {
@@ -52,8 +53,11 @@ RCT_REMAP_METHOD(detectEdges,
       }
     ];
     
-    // resolve promise
-    resolve(points);
+    // resolve promise (a single image is kept on iOS, the session is only informative)
+    resolve(@{
+        @"session": [[NSUUID UUID] UUIDString],
+        @"points": points
+    });
 }
 
 RCT_REMAP_METHOD(crop,
@@ -111,6 +115,46 @@ RCT_REMAP_METHOD(crop,
     resolve(result);
 }
 
+RCT_EXPORT_METHOD(prepare:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    // OpenCV is linked with the app on iOS, nothing to load
+    resolve(@{@"loadTime": @0, @"warmUpTime": @0});
+}
+
+RCT_EXPORT_METHOD(releaseSession:(NSString *)session)
+{
+    // a single image is kept on iOS, it is replaced by the next detection
+}
+
+RCT_EXPORT_METHOD(release:(NSString *)path)
+{
+    // only delete files written by the scanner in the cache directory
+    NSString *filePath = [path hasPrefix:@"file://"] ? [path substringFromIndex:7] : path;
+    NSString *cacheDirPath = [NSSearchPathForDirectoriesInDomains(NSCachesDirectory, NSUserDomainMask, YES) firstObject];
+
+    if ([[filePath stringByDeletingLastPathComponent] isEqualToString:cacheDirPath]) {
+        [[NSFileManager defaultManager] removeItemAtPath:filePath error:nil];
+    }
+}
+
+RCT_EXPORT_METHOD(configureOutputStore:(NSDictionary *)options)
+{
+    // files are not budgeted on iOS, they must be released by the app
+}
+
+RCT_EXPORT_METHOD(getDetectionCacheStats:(RCTPromiseResolveBlock)resolve
+                  rejecter:(RCTPromiseRejectBlock)reject)
+{
+    // detection results are not cached on iOS
+    resolve(@{@"hits": @0, @"misses": @0, @"size": @0, @"maxSize": @0});
+}
+
+RCT_EXPORT_METHOD(cancel:(NSString *)jobId)
+{
+    // jobs are run synchronously on iOS, nothing to cancel
+}
+
 - (UIImage *)resizeImage:(UIImage *)image toWidth:(double)width andHeight:(double)height
 {
     CGSize size = CGSizeMake(width, height);